@@ -12,11 +12,15 @@ public class Boot
      * Invokes SysLib.boot( ) to start a scheduler and a disk thread,
      * creates a disk cache, and thereafter invokes SysLib.exec(
      * "Loader" ) to launch a loader thread.
-     * @param args[] won't be used.
+     * @param args[] boot options of the form name=value, e.g. disk=mapped
+     *        clock=virtual, blocks=1000, readahead=8 (0 turns it off)
+     *        or stripes=4 stripeunit=8, cache=10 cachepolicy=2q (or clock)
+     *        cacheshards=2, flushratio=50 (0 turns it off) flushage=1000
+     *        cachepin=on (or off), delalloc=off (or on)
      */
     public static void main ( String args[] ) {
 	SysLib.cerr( "threadOS ver 2.0:\n" );
-	SysLib.boot( );
+	SysLib.boot( args );
 	SysLib.cerr( "Type ? for help\n" );
 
 	String[] loader = new String[1];
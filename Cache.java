@@ -0,0 +1,773 @@
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Disk block cache, split into shards by block number
+// Each shard has its own pages, replacement policy and lock, so hits on
+// blocks in different shards never contend. A miss claims a page under
+// the shard lock, then writes back the old block and reads the new one
+// with the lock released; other threads wanting either block wait for it.
+// All page data lives in one direct ByteBuffer slab off the Java heap,
+// page n of the cache at n * blockSize, and each shard keeps its page
+// state in primitive arrays, so a large cache adds nothing for the GC to
+// trace. A pinned page is not changed through the cache until released.
+// Every block has a class, set by the file system with setClass( ). Each
+// class has its own replacement policy and a quota of a shard's pages:
+// a class over its quota replaces its own pages, any other miss takes a
+// data page first and metadata last. Superblock and inode pages within
+// quota can be kept resident, out of replacement altogether.
+public class Cache {
+    private static final int INVALID = -1;
+    private static final int BYPASS = -2; // no page, use the disk
+
+    // Block classes
+    public static final int DATA      = 0;
+    public static final int SUPER     = 1;
+    public static final int INODE     = 2;
+    public static final int INDEX     = 3;
+    public static final int DIRECTORY = 4;
+    private static final int classes = 5;
+    private static final int quotaPercent[] = { 100, 10, 25, 15, 15 };
+    private static final boolean residentClass[] =
+    { false, true, true, false, false };
+    private static final int evictionOrder[] =
+    { DATA, DIRECTORY, INDEX, INODE, SUPER };
+    private static final String className[] =
+    { "data", "super", "inode", "index", "directory" };
+
+    private int blockSize;            // 512 bytes
+    private ByteBuffer slab;          // the actual pages that include data
+    private Shard shards[];
+    private AtomicInteger dirtyPages = new AtomicInteger( );
+    private int dirtyLimit;           // wake the flusher at this many
+    private Flusher flusher = null;
+    private boolean pinMetadata;      // keep resident classes resident
+    private volatile byte blockClass[] = new byte[0]; // DATA past the end
+
+    // Statistics of whole-cache operations, which are rare
+    private AtomicLong syncs = new AtomicLong( );
+    private AtomicLong syncTime = new AtomicLong( );     // ns
+    private AtomicLong flushes = new AtomicLong( );
+    private AtomicLong flushTime = new AtomicLong( );
+    private AtomicLong cleans = new AtomicLong( );       // flusher passes
+    private AtomicLong cleanBlocks = new AtomicLong( );
+    private AtomicLong cleanTime = new AtomicLong( );
+
+    private class Shard {
+	private int base;             // this shard's first page in the slab
+	private CachePolicy policy[]; // picks the page to replace, by class
+	private int quota[];          // pages each class may fill
+	private int classPages[];     // pages holding each class
+	private int residentPages;    // pages kept out of replacement
+
+	// Statistics by block class, only changed under the shard lock
+	private long hits[] = new long[ classes ];
+	private long misses[] = new long[ classes ];
+	private long evictions[] = new long[ classes ];
+	private long writeBacks[] = new long[ classes ]; // dirty blocks
+	private long bypasses = 0;    // misses with every page pinned
+
+	// page state, indexed by the page number within the shard
+	private int frame[];          // the disk block cached in this page
+	private boolean dirty[];
+	private long dirtySince[];    // when the page last became dirty
+	private boolean busy[];       // page is being loaded or written back
+	private boolean stale[];      // disk copy changed during the load
+	private int evicting[];       // dirty old block still being written
+	private byte evictData[][];   // and a copy of its data
+	private byte flushData[][];   // copy the flusher is writing back
+	private int flushVersion[];   // version that copy was taken at
+	private int version[];        // bumped whenever the data changes
+	private int pins[];           // views handed out and not released
+	private byte cls[];           // class of the block in this page
+	private boolean resident[];   // page is kept, not replaceable
+
+	private IntHashMap pageOf;    // block to the page caching it
+	private IntHashMap evictingPage; // block to the page writing it back
+	private IntHashMap flushingPage; // block to the page being flushed
+	private int freePages[];      // stack of pages holding no block
+	private int freeCount;
+	private int pinnedPages;      // pages with pins[i] > 0
+	private int inFlight;         // evictions and flushes in progress
+
+	public Shard( int base, int cacheBlocks, String policyName ) {
+	    this.base = base;
+	    frame = new int[ cacheBlocks ];
+	    dirty = new boolean[ cacheBlocks ];
+	    dirtySince = new long[ cacheBlocks ];
+	    busy = new boolean[ cacheBlocks ];
+	    stale = new boolean[ cacheBlocks ];
+	    evicting = new int[ cacheBlocks ];
+	    evictData = new byte[ cacheBlocks ][];
+	    flushData = new byte[ cacheBlocks ][];
+	    flushVersion = new int[ cacheBlocks ];
+	    version = new int[ cacheBlocks ];
+	    pins = new int[ cacheBlocks ];
+	    cls = new byte[ cacheBlocks ];
+	    resident = new boolean[ cacheBlocks ];
+	    Arrays.fill( frame, INVALID );
+	    Arrays.fill( evicting, INVALID );
+	    pageOf = new IntHashMap( cacheBlocks );
+	    evictingPage = new IntHashMap( cacheBlocks );
+	    flushingPage = new IntHashMap( cacheBlocks );
+	    freePages = new int[ cacheBlocks ];
+	    for ( freeCount = 0; freeCount < cacheBlocks; freeCount++ )
+		freePages[freeCount] = cacheBlocks - 1 - freeCount;
+	    pinnedPages = 0;
+	    inFlight = 0;
+	    policy = new CachePolicy[ classes ];
+	    quota = new int[ classes ];
+	    classPages = new int[ classes ];
+	    for ( int c = 0; c < classes; c++ ) {
+		policy[c] = policyName.equals( "clock" ) ?
+		    ( CachePolicy )new ClockPolicy( cacheBlocks ) :
+		    new TwoQPolicy( cacheBlocks );
+		quota[c] = Math.max( 1, cacheBlocks * quotaPercent[c] / 100 );
+	    }
+	    residentPages = 0;
+	}
+
+	// Makes page i replaceable, or resident if its class may stay
+	// Resident pages never take more than half of the shard.
+	private void link( int i, int blockId ) {
+	    int c = cls[i];
+	    if ( pinMetadata && residentClass[c] &&
+		 classPages[c] <= quota[c] &&
+		 ( residentPages + 1 ) * 2 <= frame.length ) {
+		resident[i] = true;
+		residentPages++;
+	    } else
+		policy[c].insert( i, blockId );
+	}
+
+	// Takes page i out of replacement, as when pinned or invalidated
+	private void unlink( int i ) {
+	    if ( resident[i] ) {
+		resident[i] = false;
+		residentPages--;
+	    } else
+		policy[cls[i]].remove( i );
+	}
+
+	// Counts page i as holding a block of class c from now on
+	private void setPageClass( int i, int c ) {
+	    classPages[cls[i]]--;
+	    cls[i] = ( byte )c;
+	    classPages[c]++;
+	}
+
+	// Picks a page to replace for a block of class c
+	private int victim( int c ) {
+	    int i = ( classPages[c] >= quota[c] ) ? policy[c].victim( ) : INVALID;
+	    for ( int k = 0; i == INVALID && k < classes; k++ )
+		i = policy[evictionOrder[k]].victim( );
+	    return i;
+	}
+
+	private int offset( int i ) {
+	    return ( base + i ) * blockSize;
+	}
+
+	private void getData( int i, byte buffer[] ) {
+	    slab.get( offset( i ), buffer, 0, blockSize );
+	}
+
+	private void putData( int i, byte buffer[] ) {
+	    slab.put( offset( i ), buffer, 0, blockSize );
+	    version[i]++;
+	}
+
+	private byte[] copyData( int i ) {
+	    byte[] p = new byte[blockSize];
+	    getData( i, p );
+	    return p;
+	}
+
+	private int findFreePage( ) {
+	    return ( freeCount > 0 ) ? freePages[--freeCount] : -1;
+	}
+
+	private int findPage( int blockId ) {
+	    return pageOf.get( blockId );
+	}
+
+	private int findEvicting( int blockId ) {
+	    return evictingPage.get( blockId );
+	}
+
+	private boolean allPinned( ) {
+	    return pinnedPages + residentPages == pins.length;
+	}
+
+	private void waitForIO( ) {
+	    try {
+		wait( );
+	    } catch ( InterruptedException e ) { }
+	}
+
+	private void setDirty( int i, boolean dirty ) {
+	    if ( this.dirty[i] == dirty )
+		return;
+	    this.dirty[i] = dirty;
+	    if ( dirty ) {
+		dirtySince[i] = System.currentTimeMillis( );
+		if ( dirtyPages.incrementAndGet( ) >= dirtyLimit &&
+		     flusher != null )
+		    flusher.wakeUp( );
+	    } else
+		dirtyPages.decrementAndGet( );
+	}
+
+	private boolean flushing( int blockId, byte buffer[] ) {
+	    int i = flushingPage.get( blockId );
+	    return i != INVALID && flushData[i] == buffer;
+	}
+
+	// Claims a page for blockId, or -1 if every page is busy
+	// The caller writes back the old block and fills the page without
+	// holding the lock, then calls install( ).
+	private int claim( int blockId ) {
+	    int victimEntry;
+	    int c = classOf( blockId );
+	    if ( ( victimEntry = findFreePage( ) ) == INVALID &&
+		 ( victimEntry = victim( c ) ) == INVALID )
+		return -1;
+	    misses[c]++;
+	    if ( frame[victimEntry] != INVALID ) {
+		pageOf.remove( frame[victimEntry] );
+		evictions[cls[victimEntry]]++;
+		if ( dirty[victimEntry] ) {
+		    writeBacks[cls[victimEntry]]++;
+		    evicting[victimEntry] = frame[victimEntry];
+		    evictData[victimEntry] = copyData( victimEntry );
+		    evictingPage.put( evicting[victimEntry], victimEntry );
+		    inFlight++;
+		}
+		classPages[cls[victimEntry]]--;
+	    }
+	    cls[victimEntry] = ( byte )c;
+	    classPages[c]++;
+	    frame[victimEntry] = blockId;
+	    pageOf.put( blockId, victimEntry );
+	    setDirty( victimEntry, false );
+	    stale[victimEntry] = false;
+	    busy[victimEntry] = true;
+	    return victimEntry;
+	}
+
+	// Serves a hit on blockId, or claims a page for it and returns it
+	// A hit copies the block out to buffer if any, or in from it for a
+	// write, and returns -1. A block being loaded or evicted is waited
+	// for, and so is a pinned one being written.
+	// Returns BYPASS if every page is pinned, so the caller goes to disk.
+	private synchronized int acquire( int blockId, byte buffer[],
+					  boolean write ) {
+	    while ( true ) {
+		int i = findPage( blockId );
+		if ( i != -1 && !busy[i] && !( write && pins[i] > 0 ) ) {
+		    // cache hit!!
+		    if ( write ) {
+			putData( i, buffer );
+			setDirty( i, true );
+		    } else if ( buffer != null )
+			getData( i, buffer );
+		    if ( pins[i] == 0 && !resident[i] )
+			policy[cls[i]].hit( i );
+		    hits[cls[i]]++;
+		    return -1;
+		}
+		if ( i == -1 && findEvicting( blockId ) == -1 &&
+		     ( i = claim( blockId ) ) != -1 )
+		    return i;
+		if ( i == -1 && allPinned( ) ) {
+		    bypasses++;
+		    return BYPASS;
+		}
+		waitForIO( );
+	    }
+	}
+
+	// Writes the claimed page's old block back, outside the lock
+	// An older copy still being written by the flusher goes first.
+	private void evict( int victimEntry ) {
+	    synchronized ( this ) {
+		while ( flushData[victimEntry] != null )
+		    waitForIO( );
+	    }
+	    if ( evicting[victimEntry] != INVALID )
+		SysLib.rawwrite( evicting[victimEntry], evictData[victimEntry] );
+	    synchronized ( this ) {
+		if ( evicting[victimEntry] != INVALID ) {
+		    evictingPage.remove( evicting[victimEntry] );
+		    inFlight--;
+		}
+		evicting[victimEntry] = INVALID;
+		evictData[victimEntry] = null;
+		notifyAll( );
+	    }
+	}
+
+	private synchronized void install( int victimEntry, int blockId,
+					   byte p[], boolean dirty ) {
+	    putData( victimEntry, p );
+	    setDirty( victimEntry, dirty );
+	    busy[victimEntry] = false;
+	    link( victimEntry, blockId );
+	    notifyAll( );
+	}
+
+	private synchronized boolean stillStale( int victimEntry ) {
+	    boolean wasStale = stale[victimEntry];
+	    stale[victimEntry] = false;
+	    return wasStale;
+	}
+
+	public boolean read( int blockId, byte buffer[] ) {
+	    int i = acquire( blockId, buffer, false );
+	    if ( i == -1 )
+		return true;
+	    if ( i == BYPASS ) {
+		if ( buffer != null )
+		    SysLib.rawread( blockId, buffer );
+		return true;
+	    }
+
+	    // page miss!!
+	    // write back a dirty copy, then read a requested block from disk
+	    evict( i );
+	    byte[] p = ( buffer != null ) ? buffer : new byte[blockSize];
+	    do {
+		SysLib.rawread( blockId, p );
+	    } while ( stillStale( i ) );
+
+	    // cache it
+	    install( i, blockId, p, false );
+	    return true;
+	}
+
+	public boolean write( int blockId, byte buffer[] ) {
+	    int i = acquire( blockId, buffer, true );
+	    if ( i == -1 )
+		return true;
+	    if ( i == BYPASS ) {
+		SysLib.rawwrite( blockId, buffer );
+		return true;
+	    }
+
+	    // page miss!!
+	    // write back a dirty copy, then cache it but not write through
+	    evict( i );
+	    install( i, blockId, buffer, true );
+	    return true;
+	}
+
+	public synchronized boolean peek( int blockId, byte buffer[] ) {
+	    int i = findPage( blockId );
+	    if ( i != -1 && !busy[i] )
+		getData( i, buffer );
+	    else if ( ( i = findEvicting( blockId ) ) != -1 )
+		System.arraycopy( evictData[i], 0, buffer, 0, blockSize );
+	    else
+		return false;
+	    return true;
+	}
+
+	public synchronized void update( int blockId, byte buffer[] ) {
+	    if ( flushing( blockId, buffer ) )
+		return; // the flusher's own write of a cached copy
+	    int i = findEvicting( blockId );
+	    if ( i != -1 && evictData[i] != buffer )
+		System.arraycopy( buffer, 0, evictData[i], 0, blockSize );
+	    if ( ( i = findPage( blockId ) ) == -1 )
+		return;
+	    if ( busy[i] ) {
+		stale[i] = true; // a load in progress reads again
+		return;
+	    }
+	    putData( i, buffer );
+	    setDirty( i, false );
+	}
+
+	// Pins blockId's page, loading it if needed, and sets view[0]
+	// A pinned page is out of the replacement policy until released.
+	// Returns false if every page was pinned, leaving a private copy.
+	public boolean pin( int blockId, ByteBuffer view[] ) {
+	    boolean loaded = false;    // read( ) counted the miss already
+	    while ( true ) {
+		synchronized ( this ) {
+		    int i = findPage( blockId );
+		    if ( i != -1 && !busy[i] ) {
+			if ( pins[i]++ == 0 ) {
+			    unlink( i );
+			    pinnedPages++;
+			}
+			if ( !loaded )
+			    hits[cls[i]]++;
+			view[0] = slab.slice( offset( i ), blockSize ).asReadOnlyBuffer( );
+			return true;
+		    }
+		    if ( i == -1 && allPinned( ) ) {
+			bypasses++;
+			break;
+		    }
+		}
+		read( blockId, null ); // then pin it unless replaced again
+		loaded = true;
+	    }
+	    // no page to pin it in: a private copy, still read-only
+	    byte[] p = new byte[blockSize];
+	    SysLib.rawread( blockId, p );
+	    view[0] = ByteBuffer.wrap( p ).asReadOnlyBuffer( );
+	    return false;
+	}
+
+	public synchronized void release( int blockId ) {
+	    int i = findPage( blockId );
+	    if ( i == -1 || busy[i] || pins[i] == 0 )
+		return;
+	    if ( --pins[i] == 0 ) {
+		pinnedPages--;
+		link( i, blockId );
+		notifyAll( ); // a miss or a writer may wait for this page
+	    }
+	}
+
+	private void waitForEvictions( ) {
+	    while ( inFlight > 0 )
+		waitForIO( );
+	}
+
+	// Copies pages dirty since olderThan for the caller to write
+	// Adds their blocks and data to the map, marking them as flushing.
+	// settle first waits for evictions and flushes in progress, so
+	// every page dirty by then gets collected.
+	public synchronized void collect( long olderThan, boolean settle,
+					  TreeMap<Integer, byte[]> map ) {
+	    if ( settle )
+		waitForEvictions( );
+	    for ( int i = 0; i < frame.length; i++ ) {
+		if ( dirty[i] && !busy[i] && flushData[i] == null &&
+		     dirtySince[i] <= olderThan &&
+		     flushingPage.get( frame[i] ) == INVALID ) {
+		    flushData[i] = copyData( i );
+		    flushVersion[i] = version[i];
+		    flushingPage.put( frame[i], i );
+		    writeBacks[cls[i]]++;
+		    inFlight++;
+		    map.put( frame[i], flushData[i] );
+		}
+	    }
+	}
+
+	// Copies blockId's page for the caller to write if it is dirty,
+	// like collect, after waiting out a load, eviction or write-back
+	// of the block already in progress
+	public synchronized void collect( int blockId,
+					  TreeMap<Integer, byte[]> map ) {
+	    int i;
+	    while ( ( ( i = findPage( blockId ) ) != INVALID && busy[i] ) ||
+		    findEvicting( blockId ) != INVALID ||
+		    flushingPage.get( blockId ) != INVALID )
+		waitForIO( );
+	    if ( i == INVALID || !dirty[i] || map.containsKey( blockId ) )
+		return;
+	    flushData[i] = copyData( i );
+	    flushVersion[i] = version[i];
+	    flushingPage.put( blockId, i );
+	    writeBacks[cls[i]]++;
+	    inFlight++;
+	    map.put( blockId, flushData[i] );
+	}
+
+	// Marks blockId's page clean once it was written back, unless
+	// the page changed or was given to another block in the meantime
+	public synchronized void cleaned( int blockId ) {
+	    int i = flushingPage.get( blockId );
+	    if ( i == INVALID )
+		return;
+	    flushingPage.remove( blockId );
+	    flushData[i] = null;
+	    inFlight--;
+	    if ( frame[i] == blockId && !busy[i] &&
+		 version[i] == flushVersion[i] )
+		setDirty( i, false );
+	    notifyAll( );
+	}
+
+	// Moves a cached blockId to the replacement policy of class c
+	public synchronized void reclassify( int blockId, int c ) {
+	    int i = findPage( blockId );
+	    if ( i == INVALID || busy[i] || cls[i] == c )
+		return;
+	    boolean linked = ( pins[i] == 0 );
+	    if ( linked )
+		unlink( i );
+	    setPageClass( i, c );
+	    if ( linked )
+		link( i, blockId );
+	}
+
+	// Invalidates every clean page that is not pinned
+	// Cache.flush( ) wrote the dirty ones back just before; a page
+	// dirtied again since then stays cached.
+	public synchronized void flush( ) {
+	    waitForEvictions( );
+	    for ( int i = 0; i < frame.length; i++ ) {
+		while ( busy[i] )
+		    waitForIO( );
+		if ( frame[i] == INVALID || pins[i] > 0 || dirty[i] )
+		    continue;
+		unlink( i );
+		classPages[cls[i]]--;
+		pageOf.remove( frame[i] );
+		frame[i] = INVALID;
+		freePages[freeCount++] = i;
+	    }
+	}
+    }
+
+    private Shard shard( int blockId ) {
+	return shards[blockId % shards.length];
+    }
+
+    private int classOf( int blockId ) {
+	byte tags[] = blockClass;
+	return ( blockId < tags.length ) ? tags[blockId] : DATA;
+    }
+
+    public Cache( int blockSize, int cacheBlocks ) {
+	this( blockSize, cacheBlocks, "clock", 1, false );
+    }
+
+    // policyName is "2q" or "clock"; pages are dealt out to the shards
+    // pinMetadata keeps superblock and inode pages resident within quota
+    public Cache( int blockSize, int cacheBlocks, String policyName,
+		  int shardCount, boolean pinMetadata ) {
+	this.blockSize = blockSize;
+	this.pinMetadata = pinMetadata;
+	dirtyLimit = cacheBlocks + 1; // no flusher yet
+	slab = ByteBuffer.allocateDirect( cacheBlocks * blockSize );
+	shardCount = Math.max( 1, Math.min( shardCount, cacheBlocks ) );
+	shards = new Shard[ shardCount ];
+	for ( int i = 0, base = 0; i < shardCount; i++ ) {
+	    int pages = cacheBlocks / shardCount +
+		( i < cacheBlocks % shardCount ? 1 : 0 );
+	    shards[i] = new Shard( base, pages, policyName );
+	    base += pages;
+	}
+    }
+
+    public boolean read( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cread\n" );
+	    return false;
+	}
+	return shard( blockId ).read( blockId, buffer );
+    }
+
+    public boolean write( int blockId, byte buffer[] ) {
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cwrite\n" );
+	    return false;
+	}
+	return shard( blockId ).write( blockId, buffer );
+    }
+
+    // Copies blockId out if it is cached, without caching it otherwise
+    // Lets raw disk reads see blocks not yet written back.
+    public boolean peek( int blockId, byte buffer[] ) {
+	if ( blockId < 0 )
+	    return false;
+	return shard( blockId ).peek( blockId, buffer );
+    }
+
+    // Refreshes a cached copy of blockId after it was written to disk
+    // directly, so the cache never returns older data than the disk.
+    public void update( int blockId, byte buffer[] ) {
+	if ( blockId < 0 )
+	    return;
+	shard( blockId ).update( blockId, buffer );
+    }
+
+    // Sets view[0] to a read-only view of blockId's cached data, or null
+    // The block stays cached until release( blockId ), and cwrite to it
+    // waits until then, so the view does not change under the caller.
+    // Returns false if the view is a private copy instead, when every
+    // page is pinned; such a view must not be released.
+    public boolean pin( int blockId, ByteBuffer view[] ) {
+	view[0] = null;
+	if ( blockId < 0 ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for cpin\n" );
+	    return false;
+	}
+	return shard( blockId ).pin( blockId, view );
+    }
+
+    public void release( int blockId ) {
+	if ( blockId >= 0 )
+	    shard( blockId ).release( blockId );
+    }
+
+    // Tags blockId with a class: DATA, SUPER, INODE, INDEX or DIRECTORY
+    public void setClass( int blockId, int c ) {
+	if ( blockId < 0 || c < 0 || c >= classes )
+	    return;
+	synchronized ( this ) {
+	    if ( blockId >= blockClass.length )
+		blockClass = Arrays.copyOf( blockClass, 
+					    Math.max( blockId + 1, 
+						      2 * blockClass.length ) );
+	    blockClass[blockId] = ( byte )c;
+	}
+	shard( blockId ).reclassify( blockId, c );
+    }
+
+    // Writes back all dirty pages; Kernel then syncs the disk
+    // Like a flusher pass, the pages are copied under each shard lock
+    // and written with the locks released, so lookups go on meanwhile.
+    public void sync( ) {
+	long start = System.nanoTime( );
+	writeBack( Long.MAX_VALUE, true );
+	syncs.incrementAndGet( );
+	syncTime.addAndGet( System.nanoTime( ) - start );
+    }
+
+    // Writes back the dirty pages of blockIds only, for a file close
+    // that must not wait for everything else dirty in the cache
+    public void sync( int blockIds[] ) {
+	TreeMap<Integer, byte[]> dirty = new TreeMap<Integer, byte[]>( );
+	for ( int i = 0; i < blockIds.length; i++ )
+	    if ( blockIds[i] >= 0 )
+		shard( blockIds[i] ).collect( blockIds[i], dirty );
+	writeBack( dirty );
+    }
+
+    // Writes back all dirty pages and invalidates every unpinned page
+    public void flush( ) {
+	long start = System.nanoTime( );
+	writeBack( Long.MAX_VALUE, true );
+	for ( int i = 0; i < shards.length; i++ )
+	    shards[i].flush( );
+	flushes.incrementAndGet( );
+	flushTime.addAndGet( System.nanoTime( ) - start );
+    }
+
+    // Lets a flusher clean pages once dirtyLimit of them are dirty
+    public void setFlusher( Flusher flusher, int dirtyLimit ) {
+	this.dirtyLimit = Math.max( 1, dirtyLimit );
+	this.flusher = flusher;
+    }
+
+    public boolean overDirtyLimit( ) {
+	return dirtyPages.get( ) >= dirtyLimit;
+    }
+
+    // Writes back pages dirty since olderThan for the flusher
+    public void clean( long olderThan ) {
+	long start = System.nanoTime( );
+	int n = writeBack( olderThan, false );
+	if ( n == 0 )
+	    return;
+	cleans.incrementAndGet( );
+	cleanBlocks.addAndGet( n );
+	cleanTime.addAndGet( System.nanoTime( ) - start );
+    }
+
+    // Writes back pages dirty since olderThan, in block order, and
+    // returns how many. settle first waits out write-backs already in
+    // flight, so every page dirty when it starts gets written.
+    private int writeBack( long olderThan, boolean settle ) {
+	TreeMap<Integer, byte[]> dirty = new TreeMap<Integer, byte[]>( );
+	for ( int i = 0; i < shards.length; i++ )
+	    shards[i].collect( olderThan, settle, dirty );
+	return writeBack( dirty );
+    }
+
+    // Writes the collected pages back and returns how many. Runs of
+    // consecutive blocks go to the disk as one request each, at most
+    // half the disk queue of runs per vector, so a large write-back
+    // leaves slots for other threads and each batch is done before the
+    // next goes out.
+    private int writeBack( TreeMap<Integer, byte[]> dirty ) {
+	if ( dirty.isEmpty( ) )
+	    return 0;
+	int maxRuns = Math.max( 1, Disk.queueSize / 2 );
+	int blockIds[] = new int[ dirty.size( ) ];
+	byte buffers[][] = new byte[ dirty.size( ) ][];
+	int n = 0, first = 0, runs = 0;
+	for ( Map.Entry<Integer, byte[]> e : dirty.entrySet( ) ) {
+	    int blockId = e.getKey( );
+	    if ( n == first || blockId != blockIds[n - 1] + 1 ) {
+		if ( runs == maxRuns ) {        // the batch is full
+		    writeBatch( blockIds, buffers, first, n );
+		    first = n;
+		    runs = 0;
+		}
+		runs++;
+	    }
+	    blockIds[n] = blockId;
+	    buffers[n++] = e.getValue( );
+	}
+	writeBatch( blockIds, buffers, first, n );
+	return n;
+    }
+
+    // Writes blockIds[first..last) back and finishes their flush
+    private void writeBatch( int blockIds[], byte buffers[][], 
+			     int first, int last ) {
+	SysLib.rawwritev( Arrays.copyOfRange( blockIds, first, last ),
+			  Arrays.copyOfRange( buffers, first, last ) );
+	for ( int i = first; i < last; i++ )
+	    shard( blockIds[i] ).cleaned( blockIds[i] );
+    }
+
+    private static String average( AtomicLong time, AtomicLong count ) {
+	long n = count.get( );
+	return ( ( n > 0 ) ? time.get( ) / n / 1000 : 0 ) + " us";
+    }
+
+    // Reports hits, misses, evictions and write-backs by block class
+    // and how long syncs, flushes and flusher passes took. The counters
+    // are read without locking, so a report taken under load is only
+    // approximately consistent.
+    public void getStats( StringBuffer s ) {
+	long total[] = new long[4];
+	int pages = 0, resident = 0;
+	for ( int i = 0; i < shards.length; i++ ) {
+	    pages += shards[i].frame.length;
+	    resident += shards[i].residentPages;
+	}
+	s.append( "cache: " + pages + " pages in " + shards.length + 
+		  " shards, " + dirtyPages.get( ) + " dirty, " + 
+		  resident + " resident\n" );
+	s.append( "  class        hits   misses  evicted  written\n" );
+	for ( int c = 0; c < classes; c++ ) {
+	    long n[] = new long[4];
+	    for ( int i = 0; i < shards.length; i++ ) {
+		n[0] += shards[i].hits[c];
+		n[1] += shards[i].misses[c];
+		n[2] += shards[i].evictions[c];
+		n[3] += shards[i].writeBacks[c];
+	    }
+	    s.append( String.format( "  %-9s %7d %8d %8d %8d\n", className[c],
+				     n[0], n[1], n[2], n[3] ) );
+	    for ( int k = 0; k < 4; k++ )
+		total[k] += n[k];
+	}
+	long bypassed = 0;
+	for ( int i = 0; i < shards.length; i++ )
+	    bypassed += shards[i].bypasses;
+	s.append( String.format( "  %-9s %7d %8d %8d %8d\n", "total",
+				 total[0], total[1], total[2], total[3] ) );
+	s.append( "  hit ratio " + ( ( total[0] + total[1] > 0 ) ? 
+				     100 * total[0] / ( total[0] + total[1] ) : 0 ) + 
+		  "%, bypassed " + bypassed + "\n" );
+	s.append( "  syncs " + syncs.get( ) + ", avg " + 
+		  average( syncTime, syncs ) + "; flushes " + flushes.get( ) +
+		  ", avg " + average( flushTime, flushes ) + "\n" );
+	s.append( "  flusher passes " + cleans.get( ) + ", blocks " + 
+		  cleanBlocks.get( ) + ", avg " + 
+		  average( cleanTime, cleans ) + "\n" );
+    }
+}
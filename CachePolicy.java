@@ -0,0 +1,11 @@
+// A replacement policy for Cache
+// The cache tells the policy about every page it references, fills or
+// invalidates, and asks it for a victim once no page is free. A victim
+// leaves the policy until it is inserted again with its new block, so
+// a page still being loaded is never picked twice.
+public interface CachePolicy {
+    void hit( int page );                   // page was referenced again
+    void insert( int page, int blockId );   // page now caches blockId
+    void remove( int page );                // page was invalidated
+    int victim( );                          // page to replace next, or -1
+}
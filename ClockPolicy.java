@@ -0,0 +1,49 @@
+// Second-chance (clock) replacement
+// A hand sweeps the pages, clearing reference bits, and picks the first
+// page whose bit is already clear.
+public class ClockPolicy implements CachePolicy {
+    private boolean reference[];
+    private boolean present[];              // page can be replaced
+    private int count;                      // number of present pages
+    private int victim;
+
+    public ClockPolicy( int cacheBlocks ) {
+	reference = new boolean[ cacheBlocks ];
+	present = new boolean[ cacheBlocks ];
+	count = 0;
+	victim = cacheBlocks - 1; // set the last frame as a previous victim
+    }
+
+    public void hit( int page ) {
+	reference[page] = true;
+    }
+
+    public void insert( int page, int blockId ) {
+	if ( !present[page] )
+	    count++;
+	present[page] = true;
+	reference[page] = true;
+    }
+
+    public void remove( int page ) {
+	if ( present[page] )
+	    count--;
+	present[page] = false;
+	reference[page] = false;
+    }
+
+    public int victim( ) {
+	if ( count == 0 )
+	    return -1;
+	while ( true ) {
+	    victim = ( victim + 1 ) % reference.length;
+	    if ( present[victim] == false )
+		continue;
+	    if ( reference[victim] == false ) {
+		remove( victim );
+		return victim;
+	    }
+	    reference[victim] = false;
+	}
+    }
+}
@@ -17,13 +17,18 @@ public class Directory {
 
   // Assumes data[] received directory information from disk
   // Initializes the Directory instance with this data[]
+  // data may hold another number of entries, as on disks from before
+  // block groups, where it was sized by blocks rather than inodes. The
+  // count is taken from its length, and entries past the last inode,
+  // which never had one on disk, are dropped.
   public void bytes2directory(byte data[]) {
+    int entries = data.length / (4 + maxChars * 2);
     int offset = 0;
-    for (int i = 0; i < fsize.length; i++, offset += 4) {
-      fsize[i] = SysLib.bytes2int(data, offset);
+    for (int i = 0; i < entries; i++, offset += 4) {
+      if (i < fsize.length) fsize[i] = SysLib.bytes2int(data, offset);
     }
 
-    for (int i = 0; i < fsize.length; i++, offset += (maxChars * 2)) {
+    for (int i = 0; i < Math.min(entries, fsize.length); i++, offset += (maxChars * 2)) {
       String fname = new String(data, offset, maxChars * 2);
       fname.getChars(0, fsize[i], fnames[i], 0);
     }
@@ -49,7 +54,12 @@ public class Directory {
   // Filename is the one of a file to be created.
   // Allocates a new inode number for this filename
   public short ialloc(String filename) {
-    for (int i = 1, l = fsize.length; i < l; i++) {
+    return ialloc(filename, 1, fsize.length);
+  }
+
+  // Allocates a new inode number from first up to last for this filename
+  public short ialloc(String filename, int first, int last) {
+    for (int i = Math.max(1, first), l = Math.min(last, fsize.length); i < l; i++) {
       if (fsize[i] == 0) {
         fsize[i] = Math.min(filename.length(), maxChars);
         filename.getChars(0, fsize[i], fnames[i], 0);
@@ -1,165 +1,473 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
 
 public class Disk extends Thread {
     public static final int blockSize = 512;
-    private final int trackSize = 10;
+    public static final int queueSize = 16;    // max outstanding requests
+    public static final int trackSize = 10;    // blocks per track
     private final int transferTime = 20;
     private final int delayPerTrack = 1;
     private int diskSize;
+    private String fileName;                   // backing file
+    private int unit;                          // spindle # in a DiskArray
 
-    private byte data[];
+    // The image is addressed with long file offsets and brought in on
+    // demand, so boot does not depend on the disk size and images may
+    // exceed 2 GB.
+    private final int pageBlocks = 64;         // blocks read in per page
+    private final int segmentBlocks = ( 1 << 30 ) / blockSize;
+    private FileChannel file;                  // backing file, and either
+    private byte pages[][];                    // heap pages, null until used
+    private final int maxPages = 4096;         // resident heap pages (128 MB)
+    private int residentPages;
+    private int evictHand;
+    private MappedByteBuffer segments[];       // or 1 GB mapped segments
+    private BitSet dirty;                      // blocks written since SYNC
 
-    private int command;
     private final int IDLE = 0;
     private final int READ = 1;
     private final int WRITE = 2;
     private final int SYNC = 3;
-    private boolean readyBuffer;
 
-    private byte[] buffer;
+    private final int FREE = 0;                // request slot states
+    private final int PENDING = 1;
+    private final int DONE = 2;
+
+    private class Request {
+	public int state = FREE;
+	public int command = IDLE;
+	public int blockId = 0;
+	public byte[][] buffers = null;        // one per consecutive block
+	public long seq = 0;                   // arrival order
+    }
+
+    private Request requests[];
+    private int pending;                       // # requests in PENDING
+    private long nextSeq;
+
     private int currentBlockId;
     private int targetBlockId;
 
+    private boolean virtualClock;              // charge time without sleeping
+    private volatile long deviceTime;          // ms of modeled seek/transfer
+
+    // I/O statistics, only updated by the disk thread
+    public static final int seekBuckets = 12;  // 0, 1, 2-3, 4-7, ... tracks
+    private long blocksRead;
+    private long blocksWritten;
+    private long syncs;
+    private long tracksCrossed;
+    private long seekHistogram[];
+    private int blockAccesses[];               // reads + writes per block
+
     public Disk( int totalBlocks ) {
+	this( totalBlocks, false );
+    }
+
+    // mapped = true maps the DISK file instead of loading it on the heap
+    public Disk( int totalBlocks, boolean mapped ) {
+	this( totalBlocks, mapped, "DISK", 0 );
+    }
+
+    // A disk backed by fileName, used as spindle #unit of a DiskArray
+    // Its request ids are reported to Kernel as unit * queueSize + id.
+    public Disk( int totalBlocks, boolean mapped, String fileName, int unit ) {
 	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-	data = new byte[ diskSize * blockSize ];
-	command = IDLE;
-	readyBuffer = false;
-	buffer = null;
+	this.fileName = fileName;
+	this.unit = unit;
+	dirty = new BitSet( diskSize );
+	requests = new Request[ queueSize ];
+	for ( int i = 0; i < queueSize; i++ )
+	    requests[i] = new Request( );
+	pending = 0;
+	nextSeq = 0;
 	currentBlockId = 0;
 	targetBlockId = 0;
+	virtualClock = false;
+	deviceTime = 0;
+	seekHistogram = new long[ seekBuckets ];
+	blockAccesses = new int[ diskSize ];
+	openImage( mapped );
+    }
+
+    // Opens the backing file, creating it if needed, and maps it when
+    // mapped is true. Falls back to heap pages if mapping fails.
+    private void openImage( boolean mapped ) {
+	int nPages = ( diskSize + pageBlocks - 1 ) / pageBlocks;
 	try {
-	    FileInputStream ifstream = new FileInputStream( "DISK" );
-	    int readableSize = ( ifstream.available( ) < data.length ) ?
-		ifstream.available( ) : data.length; 
-	    ifstream.read( data, 0, readableSize );
-	    ifstream.close( );
-	} catch ( FileNotFoundException e ) {
-	    SysLib.cerr( "threadOS: DISK created\n" );
+	    File f = new File( fileName );
+	    if ( f.exists( ) == false )
+		SysLib.cerr( "threadOS: " + fileName + " created\n" );
+	    file = new RandomAccessFile( f, "rw" ).getChannel( );
+	    if ( mapped )
+		mapImage( );
 	} catch ( IOException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
+	    segments = null;
+	}
+	if ( segments == null ) {
+	    pages = new byte[ nPages ][];
+	    residentPages = 0;
+	    evictHand = 0;
 	}
     }
 
-    public synchronized boolean read( int blockId, byte buffer[] ) {
+    // Maps the file in segments, growing it to the disk size if needed
+    private void mapImage( ) throws IOException {
+	long size = ( long )diskSize * blockSize;
+	if ( file.size( ) < size ) {
+	    file.write( ByteBuffer.allocate( 1 ), size - 1 );
+	}
+	int nSegments = ( diskSize + segmentBlocks - 1 ) / segmentBlocks;
+	segments = new MappedByteBuffer[ nSegments ];
+	for ( int i = 0; i < nSegments; i++ ) {
+	    long offset = ( long )i * segmentBlocks * blockSize;
+	    long length = Math.min( ( long )segmentBlocks * blockSize, 
+				    size - offset );
+	    segments[i] = file.map( FileChannel.MapMode.READ_WRITE, 
+				    offset, length );
+	}
+    }
 
-	if ( blockId < 0 || blockId > diskSize ) {
+    // Returns the heap page holding blockId, reading it in on first use
+    // Parts beyond the end of the file read as zeros.
+    private byte[] page( int blockId ) {
+	int p = blockId / pageBlocks;
+	if ( pages[p] == null ) {
+	    if ( residentPages == maxPages )
+		evictPage( p );
+	    residentPages++;
+	    pages[p] = new byte[ pageBlocks * blockSize ];
+	    ByteBuffer buf = ByteBuffer.wrap( pages[p] );
+	    long position = ( long )p * pageBlocks * blockSize;
+	    try {
+		int n;
+		while ( buf.hasRemaining( ) && 
+			( n = file.read( buf, position ) ) > 0 )
+		    position += n;
+	    } catch ( IOException e ) {
+		SysLib.cerr( e.toString( ) + "\n" );
+	    }
+	}
+	return pages[p];
+    }
+
+    // Queues a request and returns its id, or -1 if the queue is full
+    private int enqueue( int command, int blockId, byte buffers[][] ) {
+	for ( int i = 0; i < queueSize; i++ ) {
+	    if ( requests[i].state == FREE ) {
+		requests[i].state = PENDING;
+		requests[i].command = command;
+		requests[i].blockId = blockId;
+		requests[i].buffers = buffers;
+		requests[i].seq = nextSeq++;
+		pending++;
+		notify( );
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    public synchronized int read( int blockId, byte buffer[] ) {
+	return read( blockId, new byte[][] { buffer } );
+    }
+
+    // Reads buffers.length consecutive blocks starting at blockId
+    public synchronized int read( int blockId, byte buffers[][] ) {
+
+	if ( blockId < 0 || blockId + buffers.length > diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-	    return false;
+	    return -1;
 	}
+	return enqueue( READ, blockId, buffers );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = READ;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    public synchronized int write( int blockId, byte buffer[] ) {
+	return write( blockId, new byte[][] { buffer } );
     }
 
-    public synchronized boolean write( int blockId, byte buffer[] ) {
+    // Writes buffers.length consecutive blocks starting at blockId
+    public synchronized int write( int blockId, byte buffers[][] ) {
 
-	if ( blockId < 0 || blockId > diskSize ) {
+	if ( blockId < 0 || blockId + buffers.length > diskSize ) {
 	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-	    return false;
+	    return -1;
 	}
+	return enqueue( WRITE, blockId, buffers );
+    }
 
-	if ( command == IDLE && readyBuffer == false ) {
-	    this.buffer = buffer;
-	    targetBlockId = blockId;
-	    command = WRITE;
-	    notify( );
-	    return true;
-	} else
-	    return false;
+    public synchronized int sync( ) {
+	return enqueue( SYNC, 0, null );
     }
 
-    public synchronized boolean sync( ) {
-	
-	if ( command == IDLE && readyBuffer == false ) {
-	    command = SYNC;
-	    notify( );
-	    // System.out.println( "DISK sync notified the disk" );
+    public synchronized boolean testAndResetReady( int id ) {
+	if ( id >= 0 && id < queueSize && requests[id].state == DONE ) {
+	    requests[id].state = FREE;
+	    requests[id].buffers = null;
 	    return true;
 	} else
 	    return false;
     }
 
-    public synchronized boolean testAndResetReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
-	    readyBuffer = false;
-	    return true;
-	} else
-	    return false;
+    public synchronized boolean testIssued( int id ) {
+	return id >= 0 && id < queueSize && requests[id].state != FREE;
     }
 
-    public synchronized boolean testReady( ) {
-	if ( command == IDLE && readyBuffer == true ) {
+    public synchronized boolean testReady( int id ) {
+	if ( id >= 0 && id < queueSize && requests[id].state == DONE ) {
 	    return true;
 	} else
 	    return false;
     }
 
-    private synchronized void waitCommand( ) {
-	while ( command == IDLE ) {
+    // Picks the next request in C-LOOK order: the lowest block at or
+    // beyond the head, else wrap around to the lowest pending block.
+    // A pending SYNC is a barrier for requests queued after it.
+    private int nextRequest( ) {
+	long barrier = Long.MAX_VALUE;
+	int sync = -1;
+	for ( int i = 0; i < queueSize; i++ ) {
+	    Request r = requests[i];
+	    if ( r.state == PENDING && r.command == SYNC && r.seq < barrier ) {
+		barrier = r.seq;
+		sync = i;
+	    }
+	}
+
+	int ahead = -1;
+	int lowest = -1;
+	for ( int i = 0; i < queueSize; i++ ) {
+	    Request r = requests[i];
+	    if ( r.state != PENDING || r.command == SYNC || r.seq > barrier )
+		continue;
+	    if ( r.blockId >= currentBlockId && 
+		 ( ahead == -1 || before( r, requests[ahead] ) ) )
+		ahead = i;
+	    if ( lowest == -1 || before( r, requests[lowest] ) )
+		lowest = i;
+	}
+	if ( ahead != -1 )
+	    return ahead;
+	return ( lowest != -1 ) ? lowest : sync;
+    }
+
+    // Orders by block number, then by arrival for the same block
+    private boolean before( Request a, Request b ) {
+	return a.blockId < b.blockId || 
+	    ( a.blockId == b.blockId && a.seq < b.seq );
+    }
+
+    private synchronized int waitCommand( ) {
+	while ( pending == 0 ) {
 	    try {
 		wait( );
 	    } catch ( InterruptedException e ) {
 		SysLib.cerr( e.toString( ) + "\n" );
 	    }
-	    readyBuffer = false;
 	}
+	int id = nextRequest( );
+	targetBlockId = ( requests[id].command == SYNC ) ?
+	    currentBlockId : requests[id].blockId;
+	return id;
     }
 
     private void seek( ) {
-	int seekTime = transferTime + delayPerTrack 
-	    * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int tracks = Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
+	int seekTime = transferTime + delayPerTrack * tracks;
+	tracksCrossed += tracks;
+	seekHistogram[ Math.min( 32 - Integer.numberOfLeadingZeros( tracks ),
+				 seekBuckets - 1 ) ]++;
+	delay( seekTime );
+	currentBlockId = targetBlockId;
+    }
+
+    // Moving on to the next block of a multi-block request only pays
+    // for a track boundary crossed, not for another full seek
+    private void advance( ) {
+	int tracks = ( currentBlockId + 1 )/trackSize - currentBlockId/trackSize;
+	if ( tracks > 0 )
+	    delay( delayPerTrack * tracks );
+	currentBlockId++;
+    }
+
+    // Charges the modeled latency to the device clock, and sleeps it
+    // off in real time unless the virtual clock is on
+    private void delay( int milliseconds ) {
+	deviceTime += milliseconds;
+	if ( virtualClock )
+	    return;
 	try {
-	    Thread.sleep( seekTime );
+	    Thread.sleep( milliseconds );
 	} catch( InterruptedException e ) {
 	    SysLib.cerr( e.toString( ) + "\n" );
 	}
-	currentBlockId = targetBlockId;
     }
 
-    private synchronized void finishCommand( ) {
-	command = IDLE;
-	readyBuffer = true;
-	SysLib.disk( ); // a disk interrupt
+    // on = true completes requests at once, only advancing deviceTime
+    public void setVirtualClock( boolean on ) {
+	virtualClock = on;
+    }
+
+    // Returns the total modeled seek and transfer time in ms
+    public long getDeviceTime( ) {
+	return deviceTime;
+    }
+
+    // Appends this spindle's counters and seek-distance histogram
+    // The disk thread keeps running, so this is a loose snapshot.
+    public void getStats( StringBuffer s ) {
+	s.append( "  blocks read " + blocksRead + 
+		  ", written " + blocksWritten + 
+		  ", syncs " + syncs + 
+		  ", device time " + deviceTime + " ms\n" );
+	s.append( "  tracks crossed " + tracksCrossed + ", seeks by tracks:" );
+	for ( int i = 0; i < seekBuckets; i++ ) {
+	    if ( seekHistogram[i] == 0 )
+		continue;
+	    int low = ( i == 0 ) ? 0 : 1 << ( i - 1 );
+	    s.append( " " + ( ( i == seekBuckets - 1 ) ? low + "+" : 
+			      ( low == 0 || i == 1 ) ? "" + low : 
+			      low + "-" + ( 2 * low - 1 ) ) 
+		      + ":" + seekHistogram[i] );
+	}
+	s.append( "\n" );
+    }
+
+    // Returns how many times blockId has been read or written
+    public int getAccesses( int blockId ) {
+	return blockAccesses[blockId];
+    }
+
+    private synchronized void finishCommand( int id ) {
+	requests[id].state = DONE;
+	pending--;
+	SysLib.disk( unit * queueSize + id ); // a disk interrupt
+    }
+
+    // Drops the next resident page after the hand, other than keep,
+    // writing its dirty blocks out to the backing file first
+    private void evictPage( int keep ) {
+	int victim;
+	do {
+	    victim = evictHand;
+	    evictHand = ( evictHand + 1 ) % pages.length;
+	} while ( pages[victim] == null || victim == keep );
+	int first = victim * pageBlocks;
+	int end = Math.min( first + pageBlocks, diskSize );
+	for ( int i = dirty.nextSetBit( first ); i >= 0 && i < end; 
+	      i = dirty.nextSetBit( i + 1 ) )
+	    writeBack( i );
+	dirty.clear( first, end );
+	pages[victim] = null;
+	residentPages--;
+    }
+
+    // Writes one block of the heap pages to its offset in the file
+    private void writeBack( int blockId ) {
+	ByteBuffer block = ByteBuffer.wrap( pages[blockId / pageBlocks], 
+					    ( blockId % pageBlocks ) * blockSize,
+					    blockSize );
+	long position = ( long )blockId * blockSize;
+	try {
+	    while ( block.hasRemaining( ) )
+		position += file.write( block, position );
+	} catch ( IOException e ) {
+	    SysLib.cerr( e.toString( ) + "\n" );
+	}
+    }
+
+    private void readBlock( int blockId, byte buffer[] ) {
+	blocksRead++;
+	blockAccesses[blockId]++;
+	if ( segments != null ) {
+	    MappedByteBuffer segment = segments[blockId / segmentBlocks];
+	    segment.position( ( blockId % segmentBlocks ) * blockSize );
+	    segment.get( buffer, 0, blockSize );
+	} else
+	    System.arraycopy( page( blockId ), 
+			      ( blockId % pageBlocks ) * blockSize, 
+			      buffer, 0, 
+			      blockSize );
+    }
+
+    private void writeBlock( int blockId, byte buffer[] ) {
+	blocksWritten++;
+	blockAccesses[blockId]++;
+	if ( segments != null ) {
+	    MappedByteBuffer segment = segments[blockId / segmentBlocks];
+	    segment.position( ( blockId % segmentBlocks ) * blockSize );
+	    segment.put( buffer, 0, blockSize );
+	} else
+	    System.arraycopy( buffer, 0, 
+			      page( blockId ), 
+			      ( blockId % pageBlocks ) * blockSize, 
+			      blockSize );
+	dirty.set( blockId );
+    }
+
+    // Persists only the blocks modified since the last SYNC
+    private void syncBlocks( ) {
+	syncs++;
+	if ( segments != null )
+	    forceDirtyBlocks( );
+	else
+	    writeDirtyBlocks( );
+    }
+
+    // Forces each run of contiguous dirty blocks in the mapped segments
+    private void forceDirtyBlocks( ) {
+	for ( int i = dirty.nextSetBit( 0 ); i >= 0; 
+	      i = dirty.nextSetBit( i ) ) {
+	    int end = Math.min( dirty.nextClearBit( i ), 
+				( i / segmentBlocks + 1 ) * segmentBlocks );
+	    segments[i / segmentBlocks].force( ( i % segmentBlocks ) * blockSize,
+					       ( end - i ) * blockSize );
+	    dirty.clear( i, end );
+	    i = end;
+	}
+    }
+
+    // Writes the dirty blocks of the heap pages to the backing file, 
+    // each at its own offset
+    private void writeDirtyBlocks( ) {
+	for ( int i = dirty.nextSetBit( 0 ); i >= 0; 
+	      i = dirty.nextSetBit( i + 1 ) )
+	    writeBack( i );
+	dirty.clear( );
     }
 
     public void run ( ) {
 	
 	while ( true ) {
-	    waitCommand( );
+	    int id = waitCommand( );
+	    Request r = requests[id];
 	    seek( );
-	    // System.out.println( "Disk: command = " + command );
-	    switch( command ) {
+	    // System.out.println( "Disk: command = " + r.command );
+	    switch( r.command ) {
 	    case READ:
-		System.arraycopy( data, targetBlockId * blockSize, 
-				  buffer, 0, 
-				  blockSize );
+		for ( int i = 0; i < r.buffers.length; i++ ) {
+		    if ( i > 0 )
+			advance( );
+		    readBlock( r.blockId + i, r.buffers[i] );
+		}
 		break;
 	    case WRITE:
-		System.arraycopy( buffer, 0, 
-				  data, targetBlockId * blockSize, 
-				  blockSize );
+		for ( int i = 0; i < r.buffers.length; i++ ) {
+		    if ( i > 0 )
+			advance( );
+		    writeBlock( r.blockId + i, r.buffers[i] );
+		}
 		break;
 	    case SYNC:
-		try {
-		    FileOutputStream ofstream = new FileOutputStream( "DISK" );
-		    ofstream.write( data );
-		    ofstream.close( );
-		} catch ( FileNotFoundException e ) {
-		    SysLib.cerr( e.toString( ) );
-		} catch ( IOException e ) {
-		    SysLib.cerr( e.toString( ) );
-		}
+		syncBlocks( );
 		// SysLib.cerr( "threadOS: DISK synchronized\n" );
 		break;
 	    }
-	    finishCommand( );
+	    finishCommand( id );
 	}
     }
 }
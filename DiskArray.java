@@ -0,0 +1,153 @@
+// Stripes one logical block address space over several Disk spindles
+// (RAID-0). Logical block b lives in stripe b / stripeUnit, and stripes
+// go round-robin over the spindles, so requests to different stripes
+// are served by different disk threads in parallel.
+// With one spindle every block maps to itself and this is a plain Disk.
+public class DiskArray {
+    public static final int blockSize = Disk.blockSize;
+    public final int queueSize;                // request ids over all units
+    public final int units;                    // # spindles
+    private final int stripeUnit;              // blocks per stripe
+    public final int diskSize;                 // logical blocks
+    private Disk disks[];
+
+    public DiskArray( int totalBlocks, int units, int stripeUnit, 
+		      boolean mapped ) {
+	diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
+	this.units = ( units > 0 ) ? units : 1;
+	this.stripeUnit = ( stripeUnit > 0 ) ? stripeUnit : 1;
+	queueSize = this.units * Disk.queueSize;
+
+	// each spindle holds every units-th stripe
+	int stripes = ( diskSize + this.stripeUnit - 1 ) / this.stripeUnit;
+	int perUnit = ( stripes + this.units - 1 ) / this.units;
+	disks = new Disk[ this.units ];
+	for ( int i = 0; i < this.units; i++ ) {
+	    if ( this.units == 1 )              // a single disk is just DISK
+		disks[i] = new Disk( diskSize, mapped, "DISK", 0 );
+	    else
+		disks[i] = new Disk( perUnit * this.stripeUnit, mapped, 
+				     "DISK" + i, i );
+	}
+    }
+
+    public void start( ) {
+	for ( int i = 0; i < units; i++ )
+	    disks[i].start( );
+    }
+
+    public void setVirtualClock( boolean on ) {
+	for ( int i = 0; i < units; i++ )
+	    disks[i].setVirtualClock( on );
+    }
+
+    // Spindles run in parallel, so the busiest one bounds device time
+    public long getDeviceTime( ) {
+	long time = 0;
+	for ( int i = 0; i < units; i++ )
+	    time = Math.max( time, disks[i].getDeviceTime( ) );
+	return time;
+    }
+
+    // Appends per-spindle statistics and the most accessed blocks
+    public void getStats( StringBuffer s, int hotBlocks ) {
+	for ( int i = 0; i < units; i++ ) {
+	    s.append( "disk " + i + ":\n" );
+	    disks[i].getStats( s );
+	}
+	int hot[] = new int[ hotBlocks ];       // block ids, most used first
+	int hits[] = new int[ hotBlocks ];
+	for ( int b = 0; b < diskSize; b++ ) {
+	    int n = disks[ unitOf( b ) ].getAccesses( physicalBlock( b ) );
+	    int i = hotBlocks;
+	    while ( i > 0 && n > hits[i - 1] )
+		i--;
+	    if ( i == hotBlocks )
+		continue;
+	    System.arraycopy( hot, i, hot, i + 1, hotBlocks - i - 1 );
+	    System.arraycopy( hits, i, hits, i + 1, hotBlocks - i - 1 );
+	    hot[i] = b;
+	    hits[i] = n;
+	}
+	s.append( "hot blocks:" );
+	for ( int i = 0; i < hotBlocks && hits[i] > 0; i++ )
+	    s.append( " " + hot[i] + "(" + hits[i] + ")" );
+	s.append( "\n" );
+    }
+
+    private int unitOf( int blockId ) {
+	return ( units == 1 ) ? 0 : ( blockId / stripeUnit ) % units;
+    }
+
+    private int physicalBlock( int blockId ) {
+	if ( units == 1 )
+	    return blockId;
+	return ( blockId / stripeUnit / units ) * stripeUnit 
+	    + blockId % stripeUnit;
+    }
+
+    // Returns how many blocks from blockId on sit on the same spindle
+    // back to back, i.e. the most one multi-block request may cover
+    public int contiguous( int blockId ) {
+	if ( units == 1 )
+	    return diskSize - blockId;
+	return stripeUnit - blockId % stripeUnit;
+    }
+
+    public int read( int blockId, byte buffer[] ) {
+	return read( blockId, new byte[][] { buffer } );
+    }
+
+    // The blocks must not run past contiguous( blockId )
+    public int read( int blockId, byte buffers[][] ) {
+	if ( blockId < 0 || blockId + buffers.length > diskSize || 
+	     buffers.length > contiguous( blockId ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for read\n" );
+	    return -1;
+	}
+	int unit = unitOf( blockId );
+	int id = disks[unit].read( physicalBlock( blockId ), buffers );
+	return ( id < 0 ) ? -1 : unit * Disk.queueSize + id;
+    }
+
+    public int write( int blockId, byte buffer[] ) {
+	return write( blockId, new byte[][] { buffer } );
+    }
+
+    // The blocks must not run past contiguous( blockId )
+    public int write( int blockId, byte buffers[][] ) {
+	if ( blockId < 0 || blockId + buffers.length > diskSize || 
+	     buffers.length > contiguous( blockId ) ) {
+	    SysLib.cerr( "threadOS: a wrong blockId for write\n" );
+	    return -1;
+	}
+	int unit = unitOf( blockId );
+	int id = disks[unit].write( physicalBlock( blockId ), buffers );
+	return ( id < 0 ) ? -1 : unit * Disk.queueSize + id;
+    }
+
+    // Syncs one spindle; a full sync needs one call per unit
+    public int sync( int unit ) {
+	int id = disks[unit].sync( );
+	return ( id < 0 ) ? -1 : unit * Disk.queueSize + id;
+    }
+
+    public boolean testAndResetReady( int id ) {
+	if ( id < 0 || id >= queueSize )
+	    return false;
+	return disks[id / Disk.queueSize].testAndResetReady( id % Disk.queueSize );
+    }
+
+    // Tells if id is a request that was queued and not yet claimed
+    public boolean testIssued( int id ) {
+	if ( id < 0 || id >= queueSize )
+	    return false;
+	return disks[id / Disk.queueSize].testIssued( id % Disk.queueSize );
+    }
+
+    public boolean testReady( int id ) {
+	if ( id < 0 || id >= queueSize )
+	    return false;
+	return disks[id / Disk.queueSize].testReady( id % Disk.queueSize );
+    }
+}
@@ -1,13 +1,41 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
 public class FileSystem {
-    private SuperBlock superBlock;
+    private Superblock superBlock;
     private Directory directory;
     private FileTable fileTable;
 
+    // With delayed allocation, data written past a file's allocated blocks
+    // stays in these buffers, keyed by inode number and then by block
+    // index within the file, until the file is read, closed or synced or
+    // the flusher finds it old. Only then does it get disk blocks, all in
+    // one run, and data of deleted files never does.
+    private boolean delayedAllocation;
+    private HashMap<Short, Delayed> delayed = new HashMap<Short, Delayed>();
+
+    // The delayed blocks of one file, guarded by its inode
+    private static class Delayed {
+        TreeMap<Integer, byte[]> blocks = new TreeMap<Integer, byte[]>();
+        Inode inode;  // shared by all the file's open entries
+        long since;   // when the first of them was written
+    }
+
     // Constructor
     FileSystem(int diskSize) {
-        superBlock = new SuperBlock(diskSize);
-        directory = new Directory(superBlock.totalBlocks * 16);
-        fileTable = new FileTable(directory);
+        this(diskSize, false);
+    }
+
+    FileSystem(int diskSize, boolean delayedAllocation) {
+        this.delayedAllocation = delayedAllocation;
+        superBlock = new Superblock(diskSize);
+        // one entry per inode, where it was totalBlocks * 16 before block
+        // groups; a "/" written with another count is read in its layout
+        directory = new Directory(superBlock.totalInodes);
+        fileTable = new FileTable(directory, superBlock);
 
         // read the "/" file from disk
         FileTableEntry dirEnt = open("/", "r");
@@ -25,11 +53,35 @@ public class FileSystem {
     // The return value is 0 on success, otherwise -1.  
     int format(int files) {
         superBlock.format(files);
-        directory = new Directory(superBlock.totalBlocks * 16);
-        fileTable = new FileTable(directory);
+        directory = new Directory(superBlock.totalInodes);
+        fileTable = new FileTable(directory, superBlock);
         return 0;
     }
 
+    // Writes the superblock and the changed free-block bitmap blocks
+    // through the cache
+    // after giving delayed data its blocks
+    void sync() {
+        commitDelayed(Long.MAX_VALUE);
+        superBlock.sync();
+    }
+
+    // Gives blocks to the delayed data of every file that has had some
+    // since olderThan, so the flusher can write it back with the cache
+    void commitDelayed(long olderThan) {
+        ArrayList<Map.Entry<Short, Delayed>> files;
+        synchronized (delayed) {
+            files = new ArrayList<Map.Entry<Short, Delayed>>(delayed.entrySet());
+        }
+        for (Map.Entry<Short, Delayed> e : files) {
+            Delayed file = e.getValue();
+            if (file.since > olderThan) continue;
+            synchronized (file.inode) {
+                commitDelayed(file.inode, e.getKey());
+            }
+        }
+    }
+
     // Opens the file specified by the fileName string in the given mode 
     // Allocates a new FileTableEntry and returns it
     FileTableEntry open(String fileName, String mode) {
@@ -51,7 +103,7 @@ public class FileSystem {
         for (int i = 0; i < inode.directSize; i++) {
             if (inode.direct[i] != -1) {
                 byte[] emptyBuffer = new byte[Disk.blockSize];
-                SysLib.rawwrite(inode.direct[i], emptyBuffer);
+                SysLib.cwrite(inode.direct[i], emptyBuffer);
                 superBlock.returnBlock(inode.direct[i]);
                 inode.direct[i] = -1;
             }
@@ -60,21 +112,21 @@ public class FileSystem {
         // Clear indirect blocks
         if (inode.indirect != -1) {
             byte[] indirectBlock = new byte[Disk.blockSize];
-            SysLib.rawread(inode.indirect, indirectBlock);
+            SysLib.cread(inode.indirect, indirectBlock);
             int offset = 0;
             short blockId;
 
             // clear blocks linked to indirect block
             while ((blockId = SysLib.bytes2short(indirectBlock, offset)) > 0) {
                 byte[] emptyBuffer = new byte[Disk.blockSize];
-                SysLib.rawwrite(blockId, emptyBuffer);
+                SysLib.cwrite(blockId, emptyBuffer);
                 superBlock.returnBlock(blockId);
                 offset += 2;
             }
 
             // clear indirect block
             byte[] emptyBuffer = new byte[Disk.blockSize];
-            SysLib.rawwrite(inode.indirect, emptyBuffer);
+            SysLib.cwrite(inode.indirect, emptyBuffer);
             superBlock.returnBlock(inode.indirect);
             inode.indirect = -1;
         }
@@ -85,15 +137,23 @@ public class FileSystem {
     // starting at the position indicated by the seek pointer.
     int write(FileTableEntry ftEnt, byte[] buffer) {
         if (ftEnt.mode.equals("r")) return -1;
+        if (delayedAllocation) {
+            synchronized (ftEnt.inode) {
+                return writeDelayed(ftEnt, buffer);
+            }
+        }
 
         Inode inode = ftEnt.inode;
         // Wait if there are other processes before writing
-        synchronized(ftEnt) {
+        synchronized(inode) {
         int seekPtr = ftEnt.seekPtr;
         int bufferIndex = 0;
         
         if (ftEnt.mode.equals("a")) seekPtr = inode.length; // set pointer to end if mode is append
 
+        // take every block the write needs from the allocator at once
+        Reservation reserved = reserveBlocks(ftEnt, seekPtr, buffer.length);
+        try {
         // Deal with remainder if pointer does not start from 0 in direct blocks
         if (seekPtr % Disk.blockSize != 0 && seekPtr < inode.directSize * Disk.blockSize) {
             int remainder = seekPtr % Disk.blockSize;
@@ -102,13 +162,13 @@ public class FileSystem {
             // Allocate a new block and add to direct pointers
             // if there is not enough space
             if (inode.direct[directIndex] == -1) {
-                short newBlock = (short)superBlock.getFreeBlock();
-                inode.direct[directIndex] = newBlock;
+                int prevBlock = (directIndex > 0) ? inode.direct[directIndex - 1] : -1;
+                inode.direct[directIndex] = allocBlock(reserved, prevBlock);
             }
 
             // Copies 0 upto seekPtr of the block into writeBuffer
             byte[] remainderBuffer = new byte[Disk.blockSize];
-            SysLib.rawread(inode.direct[directIndex], remainderBuffer);
+            SysLib.cread(inode.direct[directIndex], remainderBuffer);
             byte[] writeBuffer = new byte[Disk.blockSize];
             System.arraycopy(remainderBuffer, 0, writeBuffer, 0, remainder);
             
@@ -116,7 +176,7 @@ public class FileSystem {
             // just perform write and return
             if (buffer.length < (Disk.blockSize - remainder)) {
                 System.arraycopy(buffer, bufferIndex, writeBuffer, remainder, buffer.length);
-                SysLib.rawwrite(inode.direct[directIndex], writeBuffer);
+                SysLib.cwrite(inode.direct[directIndex], writeBuffer);
                 ftEnt.seekPtr += buffer.length;
                 inode.length += buffer.length;
                 return buffer.length;
@@ -124,7 +184,7 @@ public class FileSystem {
 
             // Writes buffer from seekPtr to the end of the block into WriteBuffer
             System.arraycopy(buffer, bufferIndex, writeBuffer, remainder, writeBuffer.length - remainderBuffer.length);
-            SysLib.rawwrite(inode.direct[directIndex], writeBuffer);
+            SysLib.cwrite(inode.direct[directIndex], writeBuffer);
             seekPtr += writeBuffer.length - remainderBuffer.length;
             bufferIndex += writeBuffer.length - remainderBuffer.length;
         }
@@ -136,8 +196,8 @@ public class FileSystem {
             // Allocate a new block and add to direct pointers
             // if there is not enough space
             if (inode.direct[directIndex] == -1) {
-                short newBlock = (short)superBlock.getFreeBlock();
-                inode.direct[directIndex] = newBlock;
+                int prevBlock = (directIndex > 0) ? inode.direct[directIndex - 1] : -1;
+                inode.direct[directIndex] = allocBlock(reserved, prevBlock);
             }
 
             byte[] writeBuffer = new byte[Disk.blockSize];
@@ -146,10 +206,10 @@ public class FileSystem {
             // just perform write and return
             if (buffer.length - bufferIndex <= Disk.blockSize) {
                 byte[] leftover = new byte[Disk.blockSize];
-                SysLib.rawread(inode.direct[directIndex], leftover);
+                SysLib.cread(inode.direct[directIndex], leftover);
                 System.arraycopy(leftover, 0, writeBuffer, 0, leftover.length);
                 System.arraycopy(buffer, bufferIndex, writeBuffer, 0, buffer.length - bufferIndex);
-                SysLib.rawwrite(inode.direct[directIndex], writeBuffer);
+                SysLib.cwrite(inode.direct[directIndex], writeBuffer);
                 seekPtr += buffer.length - bufferIndex;
                 ftEnt.seekPtr = seekPtr;
                 inode.length += buffer.length;
@@ -160,7 +220,7 @@ public class FileSystem {
             System.arraycopy(buffer, bufferIndex, writeBuffer, 0, writeBuffer.length);
             seekPtr += writeBuffer.length;
             bufferIndex += writeBuffer.length;
-            SysLib.rawwrite(inode.direct[directIndex], writeBuffer);
+            SysLib.cwrite(inode.direct[directIndex], writeBuffer);
         }
 
 
@@ -168,13 +228,12 @@ public class FileSystem {
         if (seekPtr >= inode.directSize * Disk.blockSize) {
             // Allocate new indirect block if there isn't one
             if (inode.indirect == -1) {
-                short newBlock = (short)superBlock.getFreeBlock();
-                inode.indirect = newBlock;
+                inode.indirect = allocBlock(reserved, inode.direct[inode.directSize - 1]);
             }
 
             // Reads the indirect block
             byte[] indirectBlock = new byte[Disk.blockSize];
-            SysLib.rawread(inode.indirect, indirectBlock);
+            SysLib.cread(inode.indirect, indirectBlock);
             int offset = (seekPtr - inode.directSize * Disk.blockSize) / Disk.blockSize * 2;
             short blockId;
 
@@ -186,14 +245,14 @@ public class FileSystem {
                 // Locate next block number in indirect block
                 // Allocate new block if there isn't a next block
                 if (SysLib.bytes2short(indirectBlock, offset) <= 0) {
-                    short newBlock = (short)superBlock.getFreeBlock();
+                    short newBlock = allocBlock(reserved, prevIndirect(inode, indirectBlock, offset));
                     SysLib.short2bytes(newBlock, indirectBlock, offset);
-                    SysLib.rawwrite(inode.indirect, indirectBlock);
+                    SysLib.cwrite(inode.indirect, indirectBlock);
                 }
 
                 // Locate next block number in indirect block
                 blockId = SysLib.bytes2short(indirectBlock, offset);
-                SysLib.rawread(blockId, remainderBuffer);
+                SysLib.cread(blockId, remainderBuffer);
                 byte[] writeBuffer = new byte[Disk.blockSize];
                 System.arraycopy(remainderBuffer, 0, writeBuffer, 0, remainder);
                 
@@ -201,7 +260,7 @@ public class FileSystem {
                 // just perform write and return
                 if (buffer.length - bufferIndex < (Disk.blockSize - remainder)) {
                     System.arraycopy(buffer, bufferIndex, writeBuffer, remainder, buffer.length - bufferIndex);
-                    SysLib.rawwrite(blockId, writeBuffer);
+                    SysLib.cwrite(blockId, writeBuffer);
                     ftEnt.seekPtr += buffer.length - bufferIndex;
                     inode.length += buffer.length;
                     return buffer.length;
@@ -209,7 +268,7 @@ public class FileSystem {
 
                 // Writes buffer from seekPtr to the end of the block into WriteBuffer
                 System.arraycopy(buffer, bufferIndex, writeBuffer, remainder, writeBuffer.length - remainder);
-                SysLib.rawwrite(blockId, writeBuffer);
+                SysLib.cwrite(blockId, writeBuffer);
                 seekPtr += writeBuffer.length - remainder;
                 bufferIndex += writeBuffer.length - remainder;
                 offset += 2;
@@ -221,10 +280,10 @@ public class FileSystem {
                 // Locate next block number in indirect block
                 // Allocate new block if there isn't a next block
                 if ((blockId = SysLib.bytes2short(indirectBlock, offset)) <= 0) {
-                    short newBlock = (short)superBlock.getFreeBlock();
+                    short newBlock = allocBlock(reserved, prevIndirect(inode, indirectBlock, offset));
                     SysLib.short2bytes(newBlock, indirectBlock, offset);
                     blockId = newBlock;
-                    SysLib.rawwrite(inode.indirect, indirectBlock);
+                    SysLib.cwrite(inode.indirect, indirectBlock);
                 }
 
                 byte[] writeBuffer = new byte[Disk.blockSize];
@@ -233,10 +292,10 @@ public class FileSystem {
                 // just perform write and return
                 if (buffer.length - bufferIndex <= Disk.blockSize) {
                     byte[] leftover = new byte[Disk.blockSize];
-                    SysLib.rawread(blockId, leftover);
+                    SysLib.cread(blockId, leftover);
                     System.arraycopy(leftover, 0, writeBuffer, 0, leftover.length);
                     System.arraycopy(buffer, bufferIndex, writeBuffer, 0, buffer.length - bufferIndex);
-                    SysLib.rawwrite(blockId, writeBuffer);
+                    SysLib.cwrite(blockId, writeBuffer);
                     seekPtr += buffer.length - bufferIndex;
                     ftEnt.seekPtr = seekPtr;
                     inode.length += buffer.length;
@@ -247,28 +306,227 @@ public class FileSystem {
                 System.arraycopy(buffer, bufferIndex, writeBuffer, 0, writeBuffer.length);
                 seekPtr += writeBuffer.length;
                 bufferIndex += writeBuffer.length;
-                SysLib.rawwrite(blockId, writeBuffer);
+                SysLib.cwrite(blockId, writeBuffer);
                 offset += 2;
             }
         }
         ftEnt.seekPtr = seekPtr;
         inode.length += bufferIndex;
         return bufferIndex;
+        } finally {
+            // give back what the write did not use
+            while (reserved.next < reserved.count)
+                superBlock.returnBlock(reserved.blocks[reserved.next++]);
+        }
+        }
+    }
+
+    // Writes buffer at the seek pointer, in place for blocks the file
+    // already has on disk and into delayed buffers for the rest
+    private int writeDelayed(FileTableEntry ftEnt, byte[] buffer) {
+        Inode inode = ftEnt.inode;
+        int seekPtr = ftEnt.mode.equals("a") ? inode.length : ftEnt.seekPtr;
+        int maxLength = (inode.directSize + Disk.blockSize / 2) * Disk.blockSize;
+        int length = Math.max(0, Math.min(buffer.length, maxLength - seekPtr));
+
+        Delayed file;
+        synchronized (delayed) {
+            if ((file = delayed.get(ftEnt.iNumber)) == null) {
+                delayed.put(ftEnt.iNumber, file = new Delayed());
+                file.inode = inode;
+                file.since = System.currentTimeMillis();
+            }
         }
+        TreeMap<Integer, byte[]> blocks = file.blocks;
+        for (int done = 0; done < length; ) {
+            int index = (seekPtr + done) / Disk.blockSize;
+            int offset = (seekPtr + done) % Disk.blockSize;
+            int n = Math.min(Disk.blockSize - offset, length - done);
+
+            byte[] data = blocks.get(index);
+            int blockId = (data == null) ? blockAt(inode, index) : -1;
+            if (data == null && blockId <= 0) {
+                // not on disk yet, so it starts out empty
+                blocks.put(index, data = new byte[Disk.blockSize]);
+            }
+            if (data != null) {
+                System.arraycopy(buffer, done, data, offset, n);
+            } else {
+                byte[] block = new byte[Disk.blockSize];
+                if (n < Disk.blockSize) SysLib.cread(blockId, block);
+                System.arraycopy(buffer, done, block, offset, n);
+                SysLib.cwrite(blockId, block);
+            }
+            done += n;
+        }
+        ftEnt.seekPtr = seekPtr + length;
+        if (ftEnt.seekPtr > inode.length) inode.length = ftEnt.seekPtr;
+        return length;
+    }
+
+    // Returns the disk block holding block index of the file, or -1
+    private int blockAt(Inode inode, int index) {
+        if (index < inode.directSize) return inode.direct[index];
+        if (inode.indirect == -1) return -1;
+        byte[] indirectBlock = new byte[Disk.blockSize];
+        SysLib.cread(inode.indirect, indirectBlock);
+        return SysLib.bytes2short(indirectBlock, (index - inode.directSize) * 2);
+    }
+
+    // Gives the file's delayed blocks disk blocks, reserved in one call
+    // after the block before the first of them, writes them and the
+    // index block through the cache, and saves the inode
+    // The caller holds the inode.
+    private void commitDelayed(Inode inode, short iNumber) {
+        Delayed file;
+        synchronized (delayed) {
+            file = delayed.remove(iNumber);
+        }
+        if (file == null || file.blocks.isEmpty()) return;
+
+        TreeMap<Integer, byte[]> blocks = file.blocks;
+        int first = blocks.firstKey();
+        boolean newIndex = blocks.lastKey() >= inode.directSize && inode.indirect == -1;
+        Reservation reserved = new Reservation();
+        reserved.home = superBlock.getHomeBlock(iNumber);
+        reserved.blocks = new short[blocks.size() + (newIndex ? 1 : 0)];
+        int prevBlock = (first > 0) ? blockAt(inode, first - 1) : -1;
+        if (first == inode.directSize && !newIndex) prevBlock = inode.indirect;
+        reserved.count = superBlock.getFreeBlocks(prevBlock > 0 ? prevBlock + 1 : reserved.home,
+                                                  reserved.blocks.length, reserved.blocks);
+
+        byte[] indirectBlock = null;
+        for (Map.Entry<Integer, byte[]> e : blocks.entrySet()) {
+            int index = e.getKey();
+            if (index >= inode.directSize && indirectBlock == null) {
+                indirectBlock = new byte[Disk.blockSize];
+                if (inode.indirect == -1) {
+                    inode.indirect = allocBlock(reserved, prevBlock);
+                    if (inode.indirect < 0) break;
+                } else {
+                    SysLib.cread(inode.indirect, indirectBlock);
+                }
+                prevBlock = inode.indirect;
+            }
+            short blockId = allocBlock(reserved, prevBlock);
+            if (blockId < 0) break; // disk full, the rest is lost
+            if (index < inode.directSize)
+                inode.direct[index] = blockId;
+            else
+                SysLib.short2bytes(blockId, indirectBlock, (index - inode.directSize) * 2);
+            SysLib.cwrite(blockId, e.getValue());
+            prevBlock = blockId;
+        }
+        if (indirectBlock != null && inode.indirect >= 0)
+            SysLib.cwrite(inode.indirect, indirectBlock);
+        while (reserved.next < reserved.count)
+            superBlock.returnBlock(reserved.blocks[reserved.next++]);
+        inode.toDisk(iNumber, superBlock);
+    }
+
+    // Blocks reserved for one write by a single allocator call,
+    // handed out in file order
+    private static class Reservation {
+        short[] blocks;
+        int count; // blocks actually reserved
+        int next;  // the next one to hand out
+        int home;  // where a file without blocks starts, in its inode's group
+    }
+
+    // Reserves the blocks a write of length bytes at seekPtr has to
+    // allocate, the index block included, as one run after the block
+    // that precedes them in the file when the disk has room for it
+    private Reservation reserveBlocks(FileTableEntry ftEnt, int seekPtr, int length) {
+        Inode inode = ftEnt.inode;
+        Reservation reserved = new Reservation();
+        reserved.home = superBlock.getHomeBlock(ftEnt.iNumber);
+        int first = seekPtr / Disk.blockSize;
+        int last = (seekPtr + length - 1) / Disk.blockSize;
+        int maxBlocks = inode.directSize + Disk.blockSize / 2;
+        if (length <= 0) last = first - 1;
+        else if (last >= maxBlocks) last = maxBlocks - 1;
+
+        byte[] indirectBlock = null;
+        if (last >= inode.directSize && inode.indirect != -1) {
+            indirectBlock = new byte[Disk.blockSize];
+            SysLib.cread(inode.indirect, indirectBlock);
+        }
+
+        // count the missing blocks, and find the one before the first
+        int needed = 0;
+        int prevBlock = -1;
+        for (int i = 0; i <= last; i++) {
+            if (i == inode.directSize) {
+                if (inode.indirect == -1) needed++;
+                else if (needed == 0) prevBlock = inode.indirect;
+            }
+            int blockId = (i < inode.directSize) ? inode.direct[i]
+                : (indirectBlock == null) ? -1
+                : SysLib.bytes2short(indirectBlock, (i - inode.directSize) * 2);
+            if (blockId > 0 && needed == 0) prevBlock = blockId;
+            else if (blockId <= 0 && i >= first) needed++;
+        }
+
+        reserved.blocks = new short[needed];
+        if (needed > 0)
+            reserved.count = superBlock.getFreeBlocks(prevBlock >= 0 ? prevBlock + 1 : reserved.home,
+                                                      needed, reserved.blocks);
+        return reserved;
+    }
+
+    // Allocates a block for a file from the write's reservation, or
+    // right after prevBlock, the file's previous block, when that is free
+    // or else on the same track, or in the file's group if it has none
+    private short allocBlock(Reservation reserved, int prevBlock) {
+        if (reserved.next < reserved.count)
+            return reserved.blocks[reserved.next++];
+        return (short)superBlock.getFreeBlock(prevBlock >= 0 ? prevBlock + 1 : reserved.home);
+    }
+
+    // Returns the block before the one at offset in the index block,
+    // which is the index block itself for the first entry
+    private int prevIndirect(Inode inode, byte[] indirectBlock, int offset) {
+        return (offset > 0) ? SysLib.bytes2short(indirectBlock, offset - 2) : inode.indirect;
     }
 
     // closes the file corresponding to fd, commits all file transactions on this file,
     // and unregisters fd from the user file descriptor table of the calling thread's TCB. 
     // The return value is 0 in success, otherwise -1.
     int close(FileTableEntry ftEnt) {
-        synchronized(ftEnt) {
-            ftEnt.inode.count--;
-            if (ftEnt.inode.count == 0) {
-                if (fileTable.ffree(ftEnt)) return 0;
-                return -1;
+        int[] blocks;
+        synchronized(ftEnt.inode) {
+            commitDelayed(ftEnt.inode, ftEnt.iNumber);
+            blocks = fileBlocks(ftEnt.inode, ftEnt.iNumber);
+        }
+        // drops this entry's count on the inode and saves it
+        if (!fileTable.ffree(ftEnt)) return -1;
+        // write back this file's cached blocks and its inode only; the
+        // free-block bitmap and other files are left to sync and the flusher
+        SysLib.csync(blocks);
+        return 0;
+    }
+
+    // Returns the blocks of a file: its data blocks, index block and
+    // the block holding its inode
+    private int[] fileBlocks(Inode inode, short iNumber) {
+        ArrayList<Integer> blocks = new ArrayList<Integer>();
+        for (int i = 0; i < inode.directSize; i++) {
+            if (inode.direct[i] > 0) blocks.add((int)inode.direct[i]);
+        }
+        if (inode.indirect > 0) {
+            byte[] indirectBlock = new byte[Disk.blockSize];
+            SysLib.cread(inode.indirect, indirectBlock);
+            short blockId;
+            for (int offset = 0; offset < Disk.blockSize &&
+                     (blockId = SysLib.bytes2short(indirectBlock, offset)) > 0; offset += 2) {
+                blocks.add((int)blockId);
             }
-            return 0;
+            blocks.add((int)inode.indirect);
         }
+        blocks.add(superBlock.inodeBlock(iNumber));
+        int[] ids = new int[blocks.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = blocks.get(i);
+        return ids;
     }
 
     // reads up to buffer.length bytes from the file indicated by fd, 
@@ -282,93 +540,105 @@ public class FileSystem {
         int seekPtr = ftEnt.seekPtr;
         int bufferIndex = 0;
 
-        synchronized(ftEnt) {
+        synchronized(inode) {
+        // delayed data is read back from its blocks
+        if (delayedAllocation) commitDelayed(inode, ftEnt.iNumber);
+
         // Deal with remainder if pointer does not start from 0
         if (seekPtr % Disk.blockSize != 0 && seekPtr < inode.directSize * Disk.blockSize) {
             int remainder = seekPtr % Disk.blockSize;
             int directIndex = seekPtr / Disk.blockSize;
             if (inode.direct[directIndex] == -1) return 0;
 
-            byte[] readBuffer = new byte[Disk.blockSize];
-            SysLib.rawread(inode.direct[directIndex], readBuffer);
             if (buffer.length < (Disk.blockSize - remainder)) {
-                System.arraycopy(readBuffer, remainder, buffer, 0, buffer.length);
+                readBlock(inode.direct[directIndex], remainder, buffer, 0, buffer.length);
                 ftEnt.seekPtr += buffer.length;
                 return buffer.length;
             }
-            System.arraycopy(readBuffer, remainder, buffer, 0, readBuffer.length - remainder);
-            seekPtr += readBuffer.length - remainder;
-            bufferIndex += readBuffer.length - remainder;
+            readBlock(inode.direct[directIndex], remainder, buffer, 0, Disk.blockSize - remainder);
+            seekPtr += Disk.blockSize - remainder;
+            bufferIndex += Disk.blockSize - remainder;
         }
         // reads to disk from direct
         while (seekPtr < inode.directSize * Disk.blockSize) {
             int directIndex = seekPtr / Disk.blockSize;
             if (inode.direct[directIndex] == -1) return bufferIndex;
 
-            byte[] readBuffer = new byte[Disk.blockSize];
-            SysLib.rawread(inode.direct[directIndex], readBuffer);
             if (buffer.length - bufferIndex <= Disk.blockSize) {
-                System.arraycopy(readBuffer, 0, buffer, bufferIndex, buffer.length - bufferIndex);
+                readBlock(inode.direct[directIndex], 0, buffer, bufferIndex, buffer.length - bufferIndex);
                 seekPtr += buffer.length - bufferIndex;
                 ftEnt.seekPtr = seekPtr;
                 return buffer.length;
             }
-            System.arraycopy(readBuffer, 0, buffer, bufferIndex, readBuffer.length);
-            seekPtr += readBuffer.length;
-            bufferIndex += readBuffer.length;
+            readBlock(inode.direct[directIndex], 0, buffer, bufferIndex, Disk.blockSize);
+            seekPtr += Disk.blockSize;
+            bufferIndex += Disk.blockSize;
         }
         // if seek pointer is in indirect block
         if (inode.indirect == -1) return bufferIndex;
 
-        byte[] indirectBlock = new byte[Disk.blockSize];
-        SysLib.rawread(inode.indirect, indirectBlock);
+        // parse the index block in place, pinned in the cache
+        ByteBuffer[] view = new ByteBuffer[1];
+        int pinned = SysLib.cpin(inode.indirect, view);
+        if (pinned == Kernel.ERROR) return bufferIndex;
+        ByteBuffer indirectBlock = view[0];
+        try {
         int offset = (seekPtr - inode.directSize * Disk.blockSize) / Disk.blockSize * 2;
         short blockId;
 
         // Deal with seek pointer if it is in the middle of a block
         if (seekPtr % Disk.blockSize != 0) {
             int remainder = seekPtr % Disk.blockSize;
-            if (offset >= indirectBlock.length) return bufferIndex;
+            if (offset >= indirectBlock.capacity()) return bufferIndex;
 
-            blockId = SysLib.bytes2short(indirectBlock, offset);
-            byte[] readBuffer = new byte[Disk.blockSize];
-            SysLib.rawread(blockId, readBuffer);
-            
+            blockId = indirectBlock.getShort(offset);
             if (buffer.length - bufferIndex < (Disk.blockSize - remainder)) {
-                System.arraycopy(readBuffer, remainder, buffer, 0, buffer.length - bufferIndex);
+                readBlock(blockId, remainder, buffer, 0, buffer.length - bufferIndex);
                 ftEnt.seekPtr += buffer.length - bufferIndex;
                 return buffer.length;
             }
-            System.arraycopy(readBuffer, remainder, buffer, bufferIndex, readBuffer.length - remainder);
-            seekPtr += readBuffer.length - remainder;
-            bufferIndex += readBuffer.length - remainder;
+            readBlock(blockId, remainder, buffer, bufferIndex, Disk.blockSize - remainder);
+            seekPtr += Disk.blockSize - remainder;
+            bufferIndex += Disk.blockSize - remainder;
             offset += 2;
         }
 
         // Keep reading from indirect block if buffer still has space or it hasn't reached the end
-        while (bufferIndex < buffer.length && (blockId = SysLib.bytes2short(indirectBlock, offset)) > 0) {
-            if (offset >= indirectBlock.length) return bufferIndex;
-            byte[] readBuffer = new byte[Disk.blockSize];
-            SysLib.rawread(blockId, readBuffer);
+        while (bufferIndex < buffer.length && (blockId = indirectBlock.getShort(offset)) > 0) {
+            if (offset >= indirectBlock.capacity()) return bufferIndex;
             if (buffer.length - bufferIndex <= Disk.blockSize) {
-                System.arraycopy(readBuffer, 0, buffer, bufferIndex, buffer.length - bufferIndex);
+                readBlock(blockId, 0, buffer, bufferIndex, buffer.length - bufferIndex);
                 seekPtr += buffer.length - bufferIndex;
                 ftEnt.seekPtr = seekPtr;
                 return buffer.length;
             }
-            System.arraycopy(readBuffer, 0, buffer, bufferIndex, readBuffer.length);
-            seekPtr += readBuffer.length;
-            bufferIndex += readBuffer.length;
+            readBlock(blockId, 0, buffer, bufferIndex, Disk.blockSize);
+            seekPtr += Disk.blockSize;
+            bufferIndex += Disk.blockSize;
             offset += 2;
         }
         ftEnt.seekPtr = seekPtr;
         return bufferIndex;
+        } finally {
+            if (pinned == Kernel.OK) SysLib.crelease(inode.indirect);
+        }
         }
     }
 
+    // copies length bytes from offset in block blockId into buffer at index,
+    // straight from the cache's copy of the block
+    private void readBlock(int blockId, int offset, byte buffer[], int index, int length) {
+        ByteBuffer[] view = new ByteBuffer[1];
+        int pinned = SysLib.cpin(blockId, view);
+        if (pinned == Kernel.ERROR) return;
+        view[0].position(offset);
+        view[0].get(buffer, index, length);
+        if (pinned == Kernel.OK) SysLib.crelease(blockId); // not a copy
+    }
+
     // returns the size in bytes of the file indicated by fd.
     int fsize(FileTableEntry dirEnt) {
-        synchronized (dirEnt) {
+        synchronized (dirEnt.inode) {
             return dirEnt.inode.length;
         }
     }
@@ -393,7 +663,26 @@ public class FileSystem {
     int delete(String filename) {
         short iNumber = directory.namei(filename);
         if (iNumber == -1) return -1;
-        if (directory.ifree(iNumber)) return 0;
+        if (directory.ifree(iNumber)) {
+            // data not yet given blocks is dropped without them, so the
+            // file now ends where its blocks on disk do
+            Delayed file;
+            synchronized (delayed) {
+                file = delayed.get(iNumber);
+            }
+            if (file == null) return 0;
+            synchronized (file.inode) {
+                synchronized (delayed) {
+                    if (delayed.get(iNumber) != file) return 0; // committed
+                    delayed.remove(iNumber);
+                }
+                if (!file.blocks.isEmpty()) {
+                    int end = file.blocks.firstKey() * Disk.blockSize;
+                    if (file.inode.length > end) file.inode.length = end;
+                }
+            }
+            return 0;
+        }
         return -1; 
     }
 }
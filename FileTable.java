@@ -4,11 +4,13 @@ import java.util.Vector;
 public class FileTable {
   private Vector table; // the actual entity of this file table
   private Directory dir; // the root directory
+  private Superblock superBlock; // to place new inodes by block group
 
   // Constructor
-  public FileTable(Directory directory) {
+  public FileTable(Directory directory, Superblock superblock) {
     table = new Vector(); // instantiate a file (structure) table
     dir = directory; // receive a reference to the Director
+    superBlock = superblock;
   } // from the file system
 
   // Allocate a new file (structure) table entry for this file name
@@ -33,14 +35,21 @@ public class FileTable {
         if (entryMode == 0) {
           return null;
         }
-        if ((iNumber = dir.ialloc(filename)) < 0) {
+        // in the group of "/", or a less loaded one
+        int group = superBlock.getInodeGroup(0);
+        iNumber = dir.ialloc(filename, superBlock.firstInode(group),
+                             superBlock.firstInode(group + 1));
+        if (iNumber < 0 && (iNumber = dir.ialloc(filename)) < 0) {
           return null;
         }
         inode = new Inode();
         break;
       }
-      // when iNumber >= 0
-      inode = new Inode(iNumber);
+      // when iNumber >= 0, share the inode of the file's other entries
+      inode = findInode(iNumber);
+      if (inode == null) {
+        inode = new Inode(iNumber, superBlock);
+      }
       if (inode.flag == 4) {
         return null;
       }
@@ -55,8 +64,10 @@ public class FileTable {
       } catch (InterruptedException e) {
       }
     }
-    inode.count++; // increase the number of users
-    inode.toDisk(iNumber);
+    synchronized (inode) {
+      inode.count++; // increase the number of users
+      inode.toDisk(iNumber, superBlock);
+    }
     FileTableEntry e = new FileTableEntry(inode, iNumber, mode);
     table.addElement(e);
     return e;
@@ -78,17 +89,19 @@ public class FileTable {
     Inode inode = e.inode;
     short iNumber = e.iNumber;
 
-    if (inode.count > 0) {
-      // decrease the count of users of that file
-      inode.count--;
-    }
+    synchronized (inode) {
+      if (inode.count > 0) {
+        // decrease the count of users of that file
+        inode.count--;
+      }
 
-    if (inode.count == 0) {
-      inode.flag = 0;
-    }
+      if (inode.count == 0) {
+        inode.flag = 0;
+      }
 
-    // save the corresponding inode to the disk
-    inode.toDisk(iNumber);
+      // save the corresponding inode to the disk
+      inode.toDisk(iNumber, superBlock);
+    }
 
     if (inode.flag == 0 || inode.flag == 1) {
       notify();
@@ -97,6 +110,18 @@ public class FileTable {
     return true;
   }
 
+  // Returns the inode of an open entry for iNumber, or null
+  // All entries of a file share one inode, so each sees the others' writes
+  private Inode findInode(short iNumber) {
+    for (int i = 0; i < table.size(); i++) {
+      FileTableEntry e = (FileTableEntry) table.elementAt(i);
+      if (e.iNumber == iNumber) {
+        return e.inode;
+      }
+    }
+    return null;
+  }
+
   // Returns true/false on whether there is not any FileTableEntry cached inside
   // FileTable
   public synchronized boolean fempty() {
@@ -0,0 +1,51 @@
+// Background write-back of dirty cache pages
+// Wakes up every maxAge/2 ms, or as soon as the cache crosses its dirty
+// limit, and writes back in block order every page dirty for longer than
+// maxAge, or every dirty page once the limit is crossed. Evictions then
+// mostly find clean pages and a sync has little left to write.
+// File data waiting for delayed allocation as long gets its blocks first,
+// so it is written back in the same pass.
+public class Flusher extends Thread {
+    private Cache cache;
+    private volatile FileSystem fs = null; // set once it is up
+    private long maxAge;              // ms a page may stay dirty
+    private boolean wakeUp = false;
+
+    public Flusher( Cache cache, int dirtyLimit, long maxAge ) {
+	this.cache = cache;
+	this.maxAge = Math.max( 1, maxAge );
+	setDaemon( true );
+	cache.setFlusher( this, dirtyLimit );
+    }
+
+    public void setFileSystem( FileSystem fs ) {
+	this.fs = fs;
+    }
+
+    public synchronized void wakeUp( ) {
+	wakeUp = true;
+	notify( );
+    }
+
+    private synchronized void sleepUntilWoken( ) {
+	long deadline = System.currentTimeMillis( ) + maxAge / 2;
+	long now;
+	while ( !wakeUp && ( now = System.currentTimeMillis( ) ) < deadline ) {
+	    try {
+		wait( deadline - now );
+	    } catch ( InterruptedException e ) { }
+	}
+	wakeUp = false;
+    }
+
+    public void run( ) {
+	while ( true ) {
+	    sleepUntilWoken( );
+	    long olderThan = cache.overDirtyLimit( ) ? Long.MAX_VALUE :
+		System.currentTimeMillis( ) - maxAge;
+	    if ( fs != null )
+		fs.commitDelayed( olderThan );
+	    cache.clean( olderThan );
+	}
+    }
+}
@@ -1,3 +1,5 @@
+import java.nio.ByteBuffer;
+
 public class Inode {
     public final static int iNodeSize = 32;  // fixed to 32 bytes
     public final static int directSize = 11; // # direct pointers
@@ -23,24 +25,30 @@ public class Inode {
 	indirect = -1;
     }
 
-    Inode ( short iNumber ) {                      // making inode from disk
-	int blkNumber = 1 + iNumber / 16;          // inodes start from block#1
-	byte[] data = new byte[Disk.blockSize]; 
-	SysLib.rawread( blkNumber, data );         // get the inode block
+    Inode ( short iNumber, Superblock superBlock ) { // making inode from disk
+	int blkNumber = superBlock.inodeBlock( iNumber ); // in its group
+	ByteBuffer view[] = new ByteBuffer[1];
+	int pinned = SysLib.cpin( blkNumber, view ); // pin the inode block
+	if ( pinned == Kernel.ERROR )
+	    return;
+	ByteBuffer data = view[0];
 	int offset = ( iNumber % 16 ) * iNodeSize; // locate the inode top
 
-	length = SysLib.bytes2int( data, offset ); // retrieve all data members
+	length = data.getInt( offset );            // retrieve all data members
 	offset += 4;                               // from data
-	count = SysLib.bytes2short( data, offset );
+	count = data.getShort( offset );
 	offset += 2;
-	flag = SysLib.bytes2short( data, offset );
+	flag = data.getShort( offset );
 	offset += 2;
 	for ( int i = 0; i < directSize; i++ ) {
-	    direct[i] = SysLib.bytes2short( data, offset );
+	    direct[i] = data.getShort( offset );
 	    offset += 2;
 	}
-	indirect = SysLib.bytes2short( data, offset );
+	indirect = data.getShort( offset );
 	offset += 2;
+	if ( pinned == Kernel.OK )                 // not a private copy
+	    SysLib.crelease( blkNumber );
+	tagBlocks( iNumber );
 
 	/*
 	System.out.println( "Inode[" + iNumber + "]: retrieved " +
@@ -52,10 +60,7 @@ public class Inode {
 	*/
     }
 
-    void toDisk( short iNumber ) {                 // saving this inode to disk
-	byte[] iData = new byte[iNodeSize];
-	int offset = 0;
-
+    void toBytes( byte[] iData, int offset ) { // this inode's 32 bytes
 	SysLib.int2bytes( length, iData, offset ); // save all data members in
 	offset += 4;                               // iData
 	SysLib.short2bytes( count, iData, offset );
@@ -67,16 +72,22 @@ public class Inode {
 	    offset += 2;
 	}
 	SysLib.short2bytes( indirect, iData, offset );
-	offset += 2;
+    }
 
-	int blkNumber = 1 + iNumber / 16;          // inodes start from block#1
+    void toDisk( short iNumber, Superblock superBlock ) { // saving to disk
+	byte[] iData = new byte[iNodeSize];
+	int offset = 0;
+	toBytes( iData, 0 );
+
+	tagBlocks( iNumber );
+	int blkNumber = superBlock.inodeBlock( iNumber ); // in its group
 	byte[] blkData = new byte[Disk.blockSize]; 
-	SysLib.rawread( blkNumber, blkData );      // get the inode block
+	SysLib.cread( blkNumber, blkData );      // get the inode block
 	offset = ( iNumber % 16 ) * iNodeSize;     // locate the inode top
 
         // reflect the inode data to the block, and then write back to the disk
 	System.arraycopy( iData, 0, blkData, offset, iNodeSize );
-	SysLib.rawwrite( blkNumber, blkData );
+	SysLib.cwrite( blkNumber, blkData );
 
 	/*
 	System.out.println( "Inode[" + iNumber + "]: written back " +
@@ -88,6 +99,18 @@ public class Inode {
 	*/
     }
 
+    // Tells the cache which blocks hold this inode's index block and,
+    // for the root directory's inode, the directory itself
+    private void tagBlocks( short iNumber ) {
+	if ( indirect >= 0 )
+	    SysLib.ctag( indirect, Cache.INDEX );
+	if ( iNumber != 0 )
+	    return;
+	for ( int i = 0; i < directSize; i++ )
+	    if ( direct[i] >= 0 )
+		SysLib.ctag( direct[i], Cache.DIRECTORY );
+    }
+
     int findIndexBlock( ) { // return the index block number
 	return indirect;
     }
@@ -99,10 +122,11 @@ public class Inode {
 	if ( indirect != -1 )                     // check if the indirect has
 	    return false;                         // not yet had a block number
 	indirect = indexBlockNumber;              // register it
+	SysLib.ctag( indexBlockNumber, Cache.INDEX );
 	byte[] indexBlock = new byte[Disk.blockSize];
 	for ( int i = 0; i < Disk.blockSize / 2; i++ )
 	    SysLib.short2bytes( (short)-1, indexBlock, i * 2 );
-	SysLib.rawwrite( indexBlockNumber, indexBlock );
+	SysLib.cwrite( indexBlockNumber, indexBlock );
 	    
 	return true;
     }
@@ -115,10 +139,15 @@ public class Inode {
 	    if ( indirect < 0 )             // indirect is null
 		return -1;
 	    else {
-		byte[] indexBlock = new byte[Disk.blockSize];
-		SysLib.rawread( indirect, indexBlock ); // read the index block
+		ByteBuffer view[] = new ByteBuffer[1];
+		int pinned = SysLib.cpin( indirect, view ); // pin the index block
+		if ( pinned == Kernel.ERROR )
+		    return -1;
 		int indirectNumber = directNumber - directSize;
-		return SysLib.bytes2short( indexBlock, indirectNumber * 2 );
+		short target = view[0].getShort( indirectNumber * 2 );
+		if ( pinned == Kernel.OK )
+		    SysLib.crelease( indirect );
+		return target;
 	    }
 	}
     }
@@ -138,7 +167,7 @@ public class Inode {
 		return ErrorIndirectNull;
 	    else {
 		byte[] indexBlock = new byte[Disk.blockSize];
-		SysLib.rawread( indirect, indexBlock ); // read the index block
+		SysLib.cread( indirect, indexBlock ); // read the index block
 		int indirectNumber = directNumber - directSize;
 		if ( SysLib.bytes2short(indexBlock, indirectNumber * 2) > 0 ) {
 		    SysLib.cerr( "indexBlock, indirectNumber = " +
@@ -149,7 +178,7 @@ public class Inode {
 		}
 		SysLib.short2bytes( targetBlockNumber, 
 				    indexBlock, indirectNumber * 2 );
-		SysLib.rawwrite( indirect, indexBlock ); //write back the index
+		SysLib.cwrite( indirect, indexBlock ); //write back the index
 		return NoError;
 	    }
 	}
@@ -158,7 +187,7 @@ public class Inode {
     byte[] unregisterIndexBlock( ) {
 	if ( indirect >= 0 ) {
 	    byte[] indexBlock = new byte[Disk.blockSize];
-	    SysLib.rawread( indirect, indexBlock );
+	    SysLib.cread( indirect, indexBlock );
 	    indirect = -1;
 	    return indexBlock;
 	}
@@ -0,0 +1,65 @@
+// Map from non-negative int keys to int values, with no boxing
+// Open addressing with linear probing in a table kept at most half full;
+// remove shifts later entries of the probe run back instead of leaving
+// tombstones, so lookups stay short however many updates are made.
+public class IntHashMap {
+    public static final int NONE = -1;      // missing key or empty slot
+    private int keys[];
+    private int values[];
+    private int mask;
+    private int shift;
+
+    // Sized for up to capacity entries at once
+    public IntHashMap( int capacity ) {
+	int size = 2;
+	shift = 31;
+	while ( size < 2 * capacity ) {
+	    size <<= 1;
+	    shift--;
+	}
+	keys = new int[ size ];
+	values = new int[ size ];
+	mask = size - 1;
+	java.util.Arrays.fill( keys, NONE );
+    }
+
+    private int slot( int key ) {
+	return ( key * 0x9E3779B9 ) >>> shift; // Fibonacci hashing
+    }
+
+    // Returns the value for key, or NONE
+    public int get( int key ) {
+	for ( int i = slot( key ); keys[i] != NONE; i = ( i + 1 ) & mask ) {
+	    if ( keys[i] == key )
+		return values[i];
+	}
+	return NONE;
+    }
+
+    public void put( int key, int value ) {
+	int i = slot( key );
+	while ( keys[i] != NONE && keys[i] != key )
+	    i = ( i + 1 ) & mask;
+	keys[i] = key;
+	values[i] = value;
+    }
+
+    public void remove( int key ) {
+	int i = slot( key );
+	while ( keys[i] != key ) {
+	    if ( keys[i] == NONE )
+		return;
+	    i = ( i + 1 ) & mask;
+	}
+	// move back any later entry that could no longer be reached
+	for ( int j = ( i + 1 ) & mask; keys[j] != NONE; j = ( j + 1 ) & mask ) {
+	    int home = slot( keys[j] );
+	    if ( ( ( j - home ) & mask ) >= ( ( j - i ) & mask ) ) {
+		keys[i] = keys[j];
+		values[i] = values[j];
+		i = j;
+	    }
+	}
+	keys[i] = NONE;
+    }
+}
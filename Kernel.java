@@ -1,4 +1,6 @@
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.lang.model.util.ElementScanner6;
 
@@ -39,6 +41,32 @@ public class Kernel
     public final static int FORMAT  = 18; // SysLib.format( int files )
     public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+    // Vectored disk I/O
+    public final static int RAWREADV  = 20; // SysLib.rawreadv(int blk[], 
+                                            //                 byte b[][])
+    public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blk[], 
+                                            //                  byte b[][])
+    public final static int DISKTIME  = 22; // SysLib.disktime( )
+
+    // Asynchronous disk I/O
+    public final static int ASYNCREAD  = 23; // SysLib.asyncread(int blk, 
+                                             //                  byte b[])
+    public final static int ASYNCWRITE = 24; // SysLib.asyncwrite(int blk, 
+                                             //                   byte b[])
+    public final static int ASYNCWAIT  = 25; // SysLib.asyncwait(int req)
+    public final static int ASYNCPOLL  = 26; // SysLib.asyncpoll(int req)
+    public final static int DISKSTATS  = 27; // SysLib.diskstats(
+                                             //     StringBuffer s)
+
+    // Zero-copy cache access
+    public final static int CPIN     = 28; // SysLib.cpin(int blk, 
+                                           //            ByteBuffer v[])
+    public final static int CRELEASE = 29; // SysLib.crelease(int blk)
+    public final static int CTAG     = 30; // SysLib.ctag(int blk, 
+                                           //            int blockClass)
+    public final static int CACHESTATS = 31; // SysLib.cachestats(
+                                             //     StringBuffer s)
+
     // Predefined file descriptors
     public final static int STDIN  = 0;
     public final static int STDOUT = 1;
@@ -47,22 +75,43 @@ public class Kernel
     // Return values
     public final static int OK = 0;
     public final static int ERROR = -1;
+    public final static int BUSY = 1;     // an async request still in flight
+    public final static int COPIED = 2;   // cpin gave a copy, not a pin
 
     // System thread references
     private static Scheduler scheduler;
-    private static Disk disk;
+    private static DiskArray disk;
     private static Cache cache;
+    private static ReadAhead readAhead;  // null if readahead is off
+    private static Flusher flusher;      // null if flushratio=0
 
     // Synchronized Queues
     private static SyncQueue waitQueue;  // for threads to wait for their child
     private static SyncQueue ioQueue;    // I/O queue
 
     private final static int COND_DISK_REQ = 1; // wait condition 
-    private final static int COND_DISK_FIN = 2; // wait condition
+    private final static int COND_DISK_FIN = 2; // wait condition + request id
+
+    // Async requests by disk request id: the generation of the latest
+    // one, so the handle of a finished request never matches the next
+    // request in its slot, and the tid that may complete it
+    final static int ASYNC_KERNEL = -1;        // owner: kernel readahead
+    private final static int ASYNC_NONE = -2;  // owner: none outstanding
+    private static int asyncGeneration[];
+    private static int asyncOwner[];
+
+    // Disk wait statistics, in ns
+    private static AtomicLong diskRequests = new AtomicLong( );
+    private static AtomicLong diskQueueWaits = new AtomicLong( );
+    private static AtomicLong diskQueueTime = new AtomicLong( );
+    private static AtomicLong diskFinishTime = new AtomicLong( );
 
 	// File System
 	private static FileSystem fs;
 
+    // Boot options given as name=value to SysLib.boot( )
+    private static String[] bootOptions = new String[0];
+
     // Standard input
     private static BufferedReader input
 	= new BufferedReader( new InputStreamReader( System.in ) );
@@ -70,27 +119,67 @@ public class Kernel
     // The heart of Kernel
     public static int interrupt( int irq, int cmd, int param, Object args ) {
 	TCB myTcb;
+	int req;
 	switch( irq ) {
 	case INTERRUPT_SOFTWARE: // System calls
 	    switch( cmd ) { 
 	    case BOOT:
+		bootOptions = ( args != null ) ? ( String[] )args : new String[0];
+
 		// instantiate and start a scheduler
 		scheduler = new Scheduler( ); 
 		scheduler.start( );
 		
-		// instantiate and start a disk
-		disk = new Disk( 1000 );
+		// instantiate and start a disk, or a striped array of them
+		int diskBlocks = Integer.parseInt( getBootOption( "blocks", "1000" ) );
+		disk = new DiskArray( diskBlocks, 
+				      Integer.parseInt( getBootOption( "stripes", "1" ) ),
+				      Integer.parseInt( getBootOption( "stripeunit", "8" ) ),
+				      getBootOption( "disk", "heap" ).equals( "mapped" ) );
+		disk.setVirtualClock( getBootOption( "clock", "real" ).equals( "virtual" ) );
 		disk.start( );
 
-		// instantiate a cache memory
-		cache = new Cache( disk.blockSize, 10 );
+		// instantiate a cache memory, 2Q unless cachepolicy=clock,
+		// with one shard per processor but at least 4 pages a shard,
+		// keeping superblock and inode pages resident unless cachepin=off
+		int cacheBlocks = Integer.parseInt( getBootOption( "cache", "10" ) );
+		int shards = Math.min( Runtime.getRuntime( ).availableProcessors( ),
+				       Math.max( 1, cacheBlocks / 4 ) );
+		cache = new Cache( disk.blockSize, cacheBlocks,
+				   getBootOption( "cachepolicy", "2q" ),
+				   Integer.parseInt( getBootOption( "cacheshards",
+								    "" + shards ) ),
+				   !getBootOption( "cachepin", "on" ).equals( "off" ) );
 
 		// instantiate synchronized queues
-		ioQueue = new SyncQueue( );
+		ioQueue = new SyncQueue( COND_DISK_FIN + disk.queueSize );
+		asyncGeneration = new int[ disk.queueSize ];
+		asyncOwner = new int[ disk.queueSize ];
+		Arrays.fill( asyncOwner, ASYNC_NONE );
 		waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
-		// instantiate FileSystem
-		fs = new FileSystem(1000);
+		// start writing dirty cache pages back in the background once
+		// flushratio percent are dirty or one is flushage ms old
+		int ratio = Integer.parseInt( getBootOption( "flushratio", "50" ) );
+		flusher = null;
+		if ( ratio > 0 ) {
+		    flusher = new Flusher( cache, cacheBlocks * ratio / 100,
+					   Long.parseLong( getBootOption( "flushage", "1000" ) ) );
+		    flusher.start( );
+		}
+
+		// instantiate a readahead stage for raw block reads
+		int window = Integer.parseInt( getBootOption( "readahead", "8" ) );
+		readAhead = ( window > 0 ) ? 
+		    new ReadAhead( disk.blockSize, diskBlocks, 4 * window, window,
+				   Disk.queueSize / 2 ) : null;
+
+		// instantiate FileSystem, delaying block allocation until
+		// writeback if delalloc=on
+		fs = new FileSystem( diskBlocks,
+				     getBootOption( "delalloc", "off" ).equals( "on" ) );
+		if ( flusher != null )
+		    flusher.setFileSystem( fs ); // to commit delayed data
 		return OK;
 	    case EXEC:
 		return sysExec( ( String[] )args );
@@ -105,6 +194,7 @@ public class Kernel
 		if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
 		    int myPid = myTcb.getPid( ); // get my parent ID
 		    int myTid = myTcb.getTid( ); // get my ID
+		    releaseAsync( myTid ); // free the disk slots I left
 		    if ( myPid != -1 ) {
 			// wake up a thread waiting on my parent ID
 			waitQueue.dequeueAndWakeup( myPid, myTid );
@@ -118,22 +208,55 @@ public class Kernel
 		scheduler.sleepThread( param ); // param = milliseconds
 		return OK;
 	    case RAWREAD: // read a block of data from disk
-		while ( disk.read( param, ( byte[] )args ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
+		if ( cache.peek( param, ( byte[] )args ) )
+		    return OK;             // newer than the disk copy
+		if ( readAhead != null && 
+		     readAhead.read( param, ( byte[] )args ) )
+		    return OK;             // prefetched
+		while ( ( req = disk.read( param, ( byte[] )args ) ) < 0 )
+		    waitDiskQueue( );
+		waitDisk( req );
 		return OK;
 	    case RAWWRITE: // write a block of data to disk
-		while ( disk.write( param, ( byte[] )args ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
+		while ( ( req = disk.write( param, ( byte[] )args ) ) < 0 )
+		    waitDiskQueue( );
+		waitDisk( req );
+		if ( readAhead != null )
+		    readAhead.write( param, ( byte[] )args );
+		cache.update( param, ( byte[] )args );
 		return OK;
+	    case RAWREADV:  // read a list of blocks from disk
+	    case RAWWRITEV: // write a list of blocks to disk
+		Object[] vec = ( Object[] )args;
+		return sysRawVector( cmd == RAWWRITEV, ( int[] )vec[0], 
+				     ( byte[][] )vec[1] );
+	    case ASYNCREAD:  // queue a block read and return its handle
+	    case ASYNCWRITE: // queue a block write and return its handle
+		if ( ( myTcb = scheduler.getMyTcb( ) ) == null )
+		    return ERROR;
+		req = submitAsync( cmd == ASYNCWRITE, param, ( byte[] )args, 
+				   myTcb.getTid( ) );
+		if ( req != ERROR && cmd == ASYNCWRITE ) {
+		    if ( readAhead != null )
+			readAhead.write( param, ( byte[] )args );
+		    cache.update( param, ( byte[] )args );
+		}
+		return req;
+	    case ASYNCWAIT:  // wait for request param to complete
+	    case ASYNCPOLL:  // complete request param if it is done already
+		if ( ( myTcb = scheduler.getMyTcb( ) ) == null )
+		    return ERROR;
+		return completeAsync( param, myTcb.getTid( ), cmd == ASYNCWAIT );
+	    case DISKSTATS: // print disk statistics into a StringBuffer
+		sysDiskStats( ( StringBuffer )args );
+		return OK;
+	    case DISKTIME: // ms the disk has spent seeking and transferring
+		return ( int )disk.getDeviceTime( );
 	    case SYNC:     // synchronize disk data to a real file
-		while ( disk.sync( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_REQ );
-		while ( disk.testAndResetReady( ) == false )
-		    ioQueue.enqueueAndSleep( COND_DISK_FIN );
+		if ( fs != null )
+		    fs.sync( ); // the free-block bitmap
+		cache.sync( ); // write back dirty cached blocks first
+		sysDiskSync( );
 		return OK;
 	    case READ:
 			switch ( param ) {
@@ -193,10 +316,33 @@ public class Kernel
 	    case CWRITE:  // to be implemented in assignment 4
 		return cache.write( param, ( byte[] )args ) ? OK : ERROR;
 	    case CSYNC:   // to be implemented in assignment 4
+		if ( args != null ) { // just these blocks, for a file close
+		    cache.sync( ( int[] )args );
+		    return OK;
+		}
+		if ( fs != null )
+		    fs.sync( ); // the free-block bitmap
 		cache.sync( );
+		sysDiskSync( );
+		return OK;
+	    case CPIN:     // pin a cached block and return a view in args[0]
+		ByteBuffer view[] = ( ByteBuffer[] )args;
+		boolean pinned = cache.pin( param, view );
+		if ( view[0] == null )
+		    return ERROR;
+		return pinned ? OK : COPIED;
+	    case CRELEASE: // unpin a block pinned with CPIN
+		cache.release( param );
+		return OK;
+	    case CTAG:     // tell the cache what kind of block param is
+		cache.setClass( param, ( ( Integer )args ).intValue( ) );
+		return OK;
+	    case CACHESTATS: // print cache statistics into a StringBuffer
+		cache.getStats( ( StringBuffer )args );
 		return OK;
 	    case CFLUSH:  // to be implemented in assignment 4
 		cache.flush( );
+		sysDiskSync( );
 		return OK;
 	    case OPEN:    // to be implemented in project
 			if ((myTcb = scheduler.getMyTcb()) != null) {
@@ -231,8 +377,8 @@ public class Kernel
 	    }
 	    return ERROR;
 	case INTERRUPT_DISK: // Disk interrupts
-	    // wake up the thread waiting for a service completion
-	    ioQueue.dequeueAndWakeup( COND_DISK_FIN );
+	    // wake up the thread waiting for this request's completion
+	    ioQueue.dequeueAndWakeup( COND_DISK_FIN + param );
 
 	    // wake up the thread waiting for a request acceptance
 	    ioQueue.dequeueAndWakeup( COND_DISK_REQ );
@@ -244,6 +390,160 @@ public class Kernel
 	return OK;
     }
 
+    // Looking up a boot option, or defaultValue if it was not given
+    private static String getBootOption( String name, String defaultValue ) {
+	for ( int i = 0; i < bootOptions.length; i++ ) {
+	    int eq = bootOptions[i].indexOf( '=' );
+	    if ( eq > 0 && bootOptions[i].substring( 0, eq ).equals( name ) )
+		return bootOptions[i].substring( eq + 1 );
+	}
+	return defaultValue;
+    }
+
+    // Waiting for a queued disk request to complete
+    // Each request raises exactly one interrupt on its own condition,
+    // so sleep first and then claim the result.
+    private static void waitDisk( int req ) {
+	long start = System.nanoTime( );
+	do {
+	    ioQueue.enqueueAndSleep( COND_DISK_FIN + req );
+	} while ( disk.testAndResetReady( req ) == false );
+	diskRequests.incrementAndGet( );
+	diskFinishTime.addAndGet( System.nanoTime( ) - start );
+    }
+
+    // Queuing an async read or write of blockId on behalf of owner
+    // Returns a handle, generation * queueSize + request id, or ERROR if
+    // blockId is not on the disk.
+    static int submitAsync( boolean write, int blockId, byte buffer[], 
+			    int owner ) {
+	if ( blockId < 0 || blockId >= disk.diskSize )
+	    return ERROR;
+	int req;
+	while ( ( req = write ? disk.write( blockId, buffer ) 
+		  : disk.read( blockId, buffer ) ) < 0 )
+	    waitDiskQueue( );
+	synchronized ( asyncOwner ) {
+	    asyncGeneration[req] = ( asyncGeneration[req] + 1 ) % 
+		( Integer.MAX_VALUE / disk.queueSize );
+	    asyncOwner[req] = owner;
+	    return asyncGeneration[req] * disk.queueSize + req;
+	}
+    }
+
+    // Completing the async request handle submitted by owner, sleeping
+    // until it is done if wait is true
+    // Returns OK, BUSY if it is still in flight and wait is false, or 
+    // ERROR if handle is not an outstanding request of owner.
+    static int completeAsync( int handle, int owner, boolean wait ) {
+	if ( handle < 0 )
+	    return ERROR;
+	int req = handle % disk.queueSize;
+	synchronized ( asyncOwner ) {
+	    if ( asyncGeneration[req] != handle / disk.queueSize || 
+		 asyncOwner[req] != owner || disk.testIssued( req ) == false )
+		return ERROR;
+	    if ( wait == false && disk.testReady( req ) == false )
+		return BUSY;
+	    asyncOwner[req] = ASYNC_NONE;       // a second wait fails
+	}
+	waitDisk( req ); // consumes the interrupt, raised already or not
+	return OK;
+    }
+
+    // Completing the async requests tid never waited for, so their disk
+    // slots are free again once it exits
+    private static void releaseAsync( int tid ) {
+	for ( int req = 0; req < disk.queueSize; req++ ) {
+	    synchronized ( asyncOwner ) {
+		if ( asyncOwner[req] != tid )
+		    continue;
+		asyncOwner[req] = ASYNC_NONE;
+	    }
+	    waitDisk( req );
+	}
+    }
+
+    // Synchronizing every spindle's data to its real file
+    private static void sysDiskSync( ) {
+	int syncs[] = new int[ disk.units ];
+	for ( int i = 0; i < disk.units; i++ )
+	    while ( ( syncs[i] = disk.sync( i ) ) < 0 )
+		waitDiskQueue( );
+	for ( int i = 0; i < disk.units; i++ )
+	    waitDisk( syncs[i] );
+    }
+
+    // Sleeping while the disk queue is full
+    // Finished prefetches no reader claimed yet are freed instead.
+    private static void waitDiskQueue( ) {
+	if ( readAhead != null && readAhead.reapCompleted( ) > 0 )
+	    return;
+	long start = System.nanoTime( );
+	ioQueue.enqueueAndSleep( COND_DISK_REQ );
+	diskQueueWaits.incrementAndGet( );
+	diskQueueTime.addAndGet( System.nanoTime( ) - start );
+    }
+
+    // Reporting disk counters and the time callers spent waiting
+    private static void sysDiskStats( StringBuffer s ) {
+	long requests = diskRequests.get( );
+	s.append( "requests " + requests + 
+		  ", avg wait for completion " + 
+		  ( ( requests > 0 ) ? 
+		    diskFinishTime.get( ) / requests / 1000 : 0 ) + " us\n" );
+	s.append( "queue full waits " + diskQueueWaits.get( ) + 
+		  ", total " + diskQueueTime.get( ) / 1000000 + " ms\n" );
+	disk.getStats( s, 10 );
+    }
+
+    // Reading or writing a list of blocks
+    // Each run of consecutive block numbers on the same spindle goes to
+    // the disk as one request, so it pays one seek. Runs are queued 
+    // before waiting, until the disk queue is full; then the oldest run
+    // of this call is waited for to free its slot.
+    private static int sysRawVector( boolean write, int blocks[], 
+				     byte buffers[][] ) {
+	if ( blocks == null || buffers == null || 
+	     blocks.length != buffers.length )
+	    return ERROR;
+	for ( int i = 0; i < blocks.length; i++ )
+	    if ( blocks[i] < 0 || blocks[i] >= disk.diskSize )
+		return ERROR;
+	int reqs[] = new int[ blocks.length ];
+	int nReqs = 0;
+	int nDone = 0;                         // runs already waited for
+	for ( int first = 0, last; first < blocks.length; first = last ) {
+	    int max = disk.contiguous( blocks[first] );
+	    for ( last = first + 1; last < blocks.length; last++ )
+		if ( blocks[last] != blocks[last - 1] + 1 || 
+		     last - first == max )
+		    break;
+	    byte run[][] = Arrays.copyOfRange( buffers, first, last );
+	    int req;
+	    while ( ( req = write ? disk.write( blocks[first], run ) 
+		      : disk.read( blocks[first], run ) ) < 0 ) {
+		// only this call can free the slots of its earlier runs
+		if ( nDone < nReqs )
+		    waitDisk( reqs[nDone++] );
+		else
+		    waitDiskQueue( );
+	    }
+	    reqs[nReqs++] = req;
+	}
+	while ( nDone < nReqs )
+	    waitDisk( reqs[nDone++] );
+	for ( int i = 0; i < blocks.length; i++ ) {
+	    if ( write ) {
+		if ( readAhead != null )
+		    readAhead.write( blocks[i], buffers[i] );
+		cache.update( blocks[i], buffers[i] );
+	    } else
+		cache.peek( blocks[i], buffers[i] ); // newer than the disk copy
+	}
+	return OK;
+    }
+
     // Spawning a new thread
     private static int sysExec( String args[] ) {
 	String thrName = args[0]; // args[0] has a thread name
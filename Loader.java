@@ -0,0 +1,62 @@
+public class Loader extends Thread
+{
+    static final int OK = 0;
+    static final int ERROR = -1;
+
+    public Loader( ) {
+    }
+
+    public Loader( String args[] ) {
+    }
+
+    private static void help( ) {
+	SysLib.cout( "?:       print a help message\n" );
+	SysLib.cout( "q:       exit from threadOS\n" );
+	SysLib.cout( "l prog:  load prog\n" );
+	SysLib.cout( "d:       print disk statistics\n" );
+	SysLib.cout( "c:       print cache statistics\n" );
+    }
+
+    public void run( ) {
+	String cmdLine = "";
+	char cmd = ' ';
+	while ( true ) {
+	    do {
+		StringBuffer inputBuf = new StringBuffer( );
+		SysLib.cerr( "-->" );
+		SysLib.cin( inputBuf );
+		cmdLine = inputBuf.toString( );
+	    } while ( cmdLine.length( ) == 0 );
+	    System.out.println( cmdLine );
+	    cmd = cmdLine.charAt( 0 );
+	    switch( cmd ) {
+	    case '?':
+		help( );
+		break;
+	    case 'q':
+		SysLib.sync( );
+		System.exit( 1 );
+		break;
+	    case 'l':
+		String[] args = SysLib.stringToArgs( cmdLine.substring( 2 ) );
+		if ( SysLib.exec( args ) == ERROR ) {
+		    SysLib.cerr( args[0] + " failed in loading\n" );
+		} else
+		    SysLib.join( );
+		break;
+	    case 'd':
+		StringBuffer stats = new StringBuffer( );
+		SysLib.diskstats( stats );
+		SysLib.cout( stats.toString( ) );
+		break;
+	    case 'c':
+		StringBuffer cacheStats = new StringBuffer( );
+		SysLib.cachestats( cacheStats );
+		SysLib.cout( cacheStats.toString( ) );
+		break;
+	    case 'r':
+		break;
+	    }
+	}
+    }
+}
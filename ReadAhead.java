@@ -0,0 +1,243 @@
+// Sequential readahead for raw block reads
+// Each thread's reads are tracked as a stream. When a thread reads the
+// block right after its previous one, the following blocks are queued
+// on the disk asynchronously into a small set of frames, with a window
+// that doubles on every sequential read up to maxWindow and halves on
+// a random one. A later read that finds its block in a frame is served
+// from memory, waiting only if that prefetch is still in flight.
+public class ReadAhead {
+    private final int EMPTY = 0;               // frame states
+    private final int LOADING = 1;             // being queued or on the disk
+    private final int CLAIMING = 2;            // a reader waits for it
+    private final int VALID = 3;
+
+    private class Frame {
+	public int state = EMPTY;
+	public int blockId = -1;
+	public int req = -1;                   // async handle if LOADING
+	public boolean stale = false;          // written while in flight
+	public long used = 0;                  // last use, for replacement
+	public byte[] data;
+    }
+
+    private class Stream {
+	public Thread owner = null;
+	public int last = -1;                  // last block read
+	public int ahead = -1;                 // last block prefetched
+	public int window = 0;
+	public long used = 0;
+    }
+
+    private int blockSize;
+    private int diskSize;
+    private int maxWindow;
+    private int maxInFlight;                   // disk slots prefetch may use
+    private int inFlight;
+    private long clock;
+    private Frame frames[];
+    private Stream streams[];
+
+    public ReadAhead( int blockSize, int diskSize, int nFrames, 
+		      int maxWindow, int maxInFlight ) {
+	this.blockSize = blockSize;
+	this.diskSize = diskSize;
+	this.maxWindow = maxWindow;
+	this.maxInFlight = maxInFlight;
+	inFlight = 0;
+	clock = 0;
+	frames = new Frame[ nFrames ];
+	for ( int i = 0; i < nFrames; i++ ) {
+	    frames[i] = new Frame( );
+	    frames[i].data = new byte[ blockSize ];
+	}
+	streams = new Stream[ 8 ];
+	for ( int i = 0; i < streams.length; i++ )
+	    streams[i] = new Stream( );
+    }
+
+    // Serves blockId from a prefetched frame if possible, and queues
+    // more readahead for the calling thread's stream.
+    // Returns false if the caller must read blockId from disk itself.
+    public boolean read( int blockId, byte buffer[] ) {
+	Frame queued[] = new Frame[ maxWindow ];
+	int nQueued;
+	synchronized ( this ) {
+	    Stream s = stream( Thread.currentThread( ) );
+	    if ( blockId == s.last + 1 )
+		s.window = ( s.window == 0 ) ? 2 : 
+		    Math.min( s.window * 2, maxWindow );
+	    else {
+		s.window /= 2;
+		s.ahead = blockId;
+	    }
+	    s.last = blockId;
+	    s.used = ++clock;
+	    nQueued = ( s.window > 0 ) ? prefetch( s, queued ) : 0;
+	}
+
+	// the disk queue may be full, so talk to the disk without
+	// holding this monitor
+	submit( queued, nQueued );
+	reapCompleted( );
+
+	Frame f;
+	int req;
+	synchronized ( this ) {
+	    f = find( blockId );
+	    if ( f == null )
+		return false;
+	    f.used = ++clock;
+	    while ( f.state != LOADING || f.req < 0 ) {
+		if ( f.blockId != blockId || f.state == EMPTY )
+		    return false;
+		if ( f.state == VALID ) {
+		    System.arraycopy( f.data, 0, buffer, 0, blockSize );
+		    return true;
+		}
+		try {
+		    wait( );                   // not queued yet, or claimed
+		} catch ( InterruptedException e ) {
+		}
+	    }
+	    f.state = CLAIMING;
+	    req = f.req;
+	}
+
+	Kernel.completeAsync( req, Kernel.ASYNC_KERNEL, true );
+	synchronized ( this ) {
+	    complete( f );
+	    notifyAll( );
+	    if ( f.state != VALID )
+		return false;                  // written while in flight
+	    System.arraycopy( f.data, 0, buffer, 0, blockSize );
+	    return true;
+	}
+    }
+
+    // Keeps prefetched copies coherent with a block written to disk
+    public synchronized void write( int blockId, byte buffer[] ) {
+	Frame f = find( blockId );
+	if ( f == null )
+	    return;
+	if ( f.state == VALID )
+	    System.arraycopy( buffer, 0, f.data, 0, blockSize );
+	else
+	    f.stale = true;                    // drop it once it arrives
+    }
+
+    private Frame find( int blockId ) {
+	for ( int i = 0; i < frames.length; i++ )
+	    if ( frames[i].state != EMPTY && frames[i].blockId == blockId )
+		return frames[i];
+	return null;
+    }
+
+    // Returns the stream of thread t, taking over the least recently
+    // used one if t has none
+    private Stream stream( Thread t ) {
+	Stream lru = streams[0];
+	for ( int i = 0; i < streams.length; i++ ) {
+	    if ( streams[i].owner == t )
+		return streams[i];
+	    if ( streams[i].used < lru.used )
+		lru = streams[i];
+	}
+	lru.owner = t;
+	lru.last = -1;
+	lru.ahead = -1;
+	lru.window = 0;
+	return lru;
+    }
+
+    // Picks frames for the blocks up to s.last + s.window not yet asked
+    // for and marks them LOADING, for submit to queue on the disk
+    // Returns how many frames it put in queued.
+    private int prefetch( Stream s, Frame queued[] ) {
+	int n = 0;
+	int first = Math.max( s.ahead, s.last ) + 1;
+	int end = Math.min( s.last + s.window, diskSize - 1 );
+	for ( int b = first; b <= end && inFlight < maxInFlight; b++ ) {
+	    if ( find( b ) == null ) {
+		Frame f = victim( s.last );
+		if ( f == null )
+		    break;
+		f.state = LOADING;
+		f.blockId = b;
+		f.stale = false;
+		f.used = ++clock;
+		f.req = -1;                    // until submit queues it
+		inFlight++;
+		queued[n++] = f;
+	    }
+	    s.ahead = b;
+	}
+	return n;
+    }
+
+    // Queues the reads of frames prefetch marked LOADING
+    private void submit( Frame queued[], int n ) {
+	for ( int i = 0; i < n; i++ ) {
+	    int req = Kernel.submitAsync( false, queued[i].blockId, 
+					  queued[i].data, Kernel.ASYNC_KERNEL );
+	    synchronized ( this ) {
+		queued[i].req = req;
+		notifyAll( );
+	    }
+	}
+    }
+
+    // Picks an empty frame, else the least recently used valid one
+    private Frame victim( int keep ) {
+	Frame lru = null;
+	for ( int i = 0; i < frames.length; i++ ) {
+	    Frame f = frames[i];
+	    if ( f.state == EMPTY )
+		return f;
+	    if ( f.state == VALID && f.blockId != keep && 
+		 ( lru == null || f.used < lru.used ) )
+		lru = f;
+	}
+	return lru;
+    }
+
+    // Claims prefetches the disk has finished, freeing their disk slots,
+    // and returns how many. Kernel calls it too when the disk queue is
+    // full, so prefetches of a stream that stopped do not keep slots.
+    // The frames are CLAIMING while polled outside this monitor.
+    public int reapCompleted( ) {
+	Frame polled[] = new Frame[ frames.length ];
+	int n = 0;
+	synchronized ( this ) {
+	    for ( int i = 0; i < frames.length; i++ )
+		if ( frames[i].state == LOADING && frames[i].req >= 0 ) {
+		    frames[i].state = CLAIMING;
+		    polled[n++] = frames[i];
+		}
+	}
+	if ( n == 0 )
+	    return 0;
+	boolean done[] = new boolean[ n ];
+	for ( int i = 0; i < n; i++ )
+	    done[i] = Kernel.completeAsync( polled[i].req, Kernel.ASYNC_KERNEL, 
+					    false ) == Kernel.OK;
+	int reaped = 0;
+	synchronized ( this ) {
+	    for ( int i = 0; i < n; i++ ) {
+		if ( done[i] ) {
+		    complete( polled[i] );
+		    reaped++;
+		} else
+		    polled[i].state = LOADING;
+	    }
+	    notifyAll( );
+	}
+	return reaped;
+    }
+
+    private void complete( Frame f ) {
+	f.state = f.stale ? EMPTY : VALID;
+	f.stale = false;
+	f.req = -1;
+	inFlight--;
+    }
+}
@@ -1,8 +1,37 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Superblock {
   private static final int defaultInodeBlocks = 64;
+  private static final int bitmapFormat = 0x4d415031; // "MAP1", one group
+  private static final int groupFormat = 0x4d415032; // "MAP2" at offset 12
+  private static final int bitsPerBlock = Disk.blockSize * 8;
   public int totalBlocks; // the number of disk blocks
   public int totalInodes; // the number of inodes
-  public int freeList; // the block number of the free list's head
+  public int freeMap; // the block number of group 0's free-block bitmap
+
+  // Block groups, as in ext2. Group g holds groupBlocks blocks from
+  // g * groupBlocks on, the last one also the rest of the disk, and
+  // starts with its slice of inodesPerGroup inodes (after the superblock
+  // in group 0) followed by its part of the bitmap (at freeMap in group
+  // 0), so a file's data can sit near its inode and the bits for it.
+  // Each group's part of the bitmap has its own lock, so threads
+  // allocating in different groups do not wait for each other.
+  private int groupBlocks;
+  private int inodesPerGroup;
+  private int groups;
+  private Object[] groupLock;
+  private int[] groupFree; // free blocks in each group
+  private boolean[] groupDirty; // bitmap changed since the last sync
+
+  // Free-block bitmap, one bit per disk block and set while it is in use.
+  // Allocation and free only touch this copy; sync() writes the bitmap
+  // blocks that changed.
+  private long[] map;
+  private volatile int nextFree; // where the next scan for a free block starts
+  private AtomicInteger cleared = new AtomicInteger(); // free blocks from here
+                                                       // on may hold stale data
+  private int syncedCleared = -1; // the mark on disk, -1 to write block 0
 
   // Constructor
   public Superblock(int diskSize) {
@@ -10,106 +39,453 @@ public class Superblock {
     byte[] superBlock = new byte[Disk.blockSize];
 
     // read the superblock from Disk
-    SysLib.rawread(0, superBlock);
+    SysLib.cread(0, superBlock);
     totalBlocks = SysLib.bytes2int(superBlock, 0);
     totalInodes = SysLib.bytes2int(superBlock, 4);
-    freeList = SysLib.bytes2int(superBlock, 8);
+    freeMap = SysLib.bytes2int(superBlock, 8);
+    int format = SysLib.bytes2int(superBlock, 12);
+    cleared.set(SysLib.bytes2int(superBlock, 16));
 
     // check disk contents are valid
-    if (totalBlocks == diskSize && totalInodes > 0 && freeList >= 2)
+    if (totalBlocks == diskSize && totalInodes > 0 && freeMap >= 2) {
       // disk contents are valid
-      return;
-    else {
-      // if invalid, call format()
-      totalBlocks = diskSize;
-      format(defaultInodeBlocks);
+      if (format == groupFormat && SysLib.bytes2int(superBlock, 20) > 0) {
+        setLayout(SysLib.bytes2int(superBlock, 20), SysLib.bytes2int(superBlock, 24));
+        syncedCleared = cleared.get();
+        loadMap();
+        tagMetadata();
+        return;
+      }
+      // an older disk is a single group
+      setLayout(totalBlocks, (totalInodes + 15) / 16 * 16);
+      if (format == bitmapFormat) {
+        loadMap();
+        tagMetadata();
+        return;
+      }
+      // or keeps a linked free list headed by freeMap
+      if (convertFreeList()) {
+        tagMetadata();
+        sync();
+        return;
+      }
     }
+    // if invalid, call format()
+    totalBlocks = diskSize;
+    format(defaultInodeBlocks);
   }
 
-  // Writes back totalBlocks, totalInodes, and freeList to Disk
-  public void sync() {
-    // create a byte array to contain the variables
-    // when they are converted back from int to bytes
-    byte[] block = new byte[Disk.blockSize];
-    SysLib.int2bytes(totalBlocks, block, 0);
-    SysLib.int2bytes(totalInodes, block, 4);
-    SysLib.int2bytes(freeList, block, 8);
-    // write it to the disk
-    SysLib.rawwrite(0, block);
+  // Writes back totalBlocks, totalInodes, freeMap, the group layout and
+  // the changed bitmap blocks to Disk. Block 0 is only written when the
+  // cleared mark moved, so syncs do not keep seeking back to it.
+  public synchronized void sync() {
+    int mark = cleared.get();
+    if (mark != syncedCleared) {
+      // create a byte array to contain the variables
+      // when they are converted back from int to bytes
+      byte[] block = new byte[Disk.blockSize];
+      SysLib.int2bytes(totalBlocks, block, 0);
+      SysLib.int2bytes(totalInodes, block, 4);
+      SysLib.int2bytes(freeMap, block, 8);
+      SysLib.int2bytes(groupFormat, block, 12);
+      SysLib.int2bytes(mark, block, 16);
+      SysLib.int2bytes(groupBlocks, block, 20);
+      SysLib.int2bytes(inodesPerGroup, block, 24);
+      // write it to the disk
+      SysLib.cwrite(0, block);
+      syncedCleared = mark;
+    }
+
+    // write the bitmap of each group that changed, copied under its lock
+    for (int g = 0; g < groups; g++) {
+      long[] words;
+      synchronized (groupLock[g]) {
+        if (!groupDirty[g])
+          continue;
+        words = Arrays.copyOfRange(map, groupStart(g) / 64, (groupEnd(g) + 63) / 64);
+        groupDirty[g] = false;
+      }
+      for (int i = 0; i < mapBlocks(g); i++) {
+        // bit b of byte j covers block i * bitsPerBlock + j * 8 + b of
+        // the group
+        byte[] bits = new byte[Disk.blockSize];
+        for (int j = 0; j < Disk.blockSize; j++) {
+          int word = (i * Disk.blockSize + j) / 8;
+          if (word < words.length)
+            bits[j] = (byte) (words[word] >>> ((j % 8) * 8));
+        }
+        SysLib.cwrite(mapStart(g) + i, bits);
+      }
+    }
   }
 
   // Initializes the superblock
-  // Initializes each inode and immediately write it back to Disk
-  // initialize free blocks
-  public void format(int numOfInodes) {
-    byte[] block = null;
-
+  // Writes each inode block once, filled with unused inodes
+  // Leaves free blocks as they are, to be cleared as they are allocated
+  public synchronized void format(int numOfInodes) {
     totalInodes = numOfInodes;
+    syncedCleared = -1;
+    int inodeBlocks = (numOfInodes + 15) / 16;
+
+    // groups of 256 blocks, or more up to a bitmap block's worth to keep
+    // them about 16, sharing the inode blocks evenly; a small disk, or
+    // one whose inodes would not leave room in group 0, is one group
+    int blocksPerGroup = 256;
+    while (blocksPerGroup < bitsPerBlock && blocksPerGroup * 16 < totalBlocks)
+      blocksPerGroup *= 2;
+    int groupCount = totalBlocks / blocksPerGroup;
+    if (groupCount < 2 || 1 + inodeBlocks + 1 > blocksPerGroup)
+      setLayout(totalBlocks, inodeBlocks * 16);
+    else
+      setLayout(blocksPerGroup, (inodeBlocks + groupCount - 1) / groupCount * 16);
 
-    for (int i = 0; i < totalInodes; i++) {
-      // reset inode in disk
-      Inode tempNode = new Inode();
-      tempNode.toDisk((short) i);
+    // group 0's bitmap goes where a single inode table would end
+    freeMap = 1 + inodeBlocks;
+    newMap();
+    setUsed(0);
+    for (int g = 0; g < groups; g++) {
+      for (int i = 0; i < sliceBlocks(g); i++)
+        setUsed(inodeStart(g) + i);
+      for (int i = 0; i < mapBlocks(g); i++)
+        setUsed(mapStart(g) + i);
     }
+    tagMetadata();
 
-    // set free list based on the number of Inodes
-    int var;
-    if (numOfInodes % 16 == 0)
-      var = 1;
-    else
-      var = 2;
+    // reset inodes in disk
+    byte[] block = new byte[Disk.blockSize];
+    Inode tempNode = new Inode();
+    for (int i = 0; i < 16; i++)
+      tempNode.toBytes(block, i * Inode.iNodeSize);
+    for (int g = 0; g < groups; g++)
+      for (int i = 0; i < sliceBlocks(g); i++)
+        SysLib.cwrite(inodeStart(g) + i, block);
+    cleared.set(findFree(0, totalBlocks));
+
+    // update super block and the whole bitmap
+    for (int g = 0; g < groups; g++)
+      groupDirty[g] = true;
+    sync();
+  }
+
+  // Tells the cache which blocks hold the superblock, the inodes and
+  // the bitmap
+  private void tagMetadata() {
+    SysLib.ctag(0, Cache.SUPER);
+    for (int g = 0; g < groups; g++) {
+      for (int i = 0; i < sliceBlocks(g); i++)
+        SysLib.ctag(inodeStart(g) + i, Cache.INODE);
+      for (int i = 0; i < mapBlocks(g); i++)
+        SysLib.ctag(mapStart(g) + i, Cache.SUPER);
+    }
+  }
+
+  // Sets up groups of blocksPerGroup blocks with inodes inodes each
+  private void setLayout(int blocksPerGroup, int inodes) {
+    groupBlocks = blocksPerGroup;
+    inodesPerGroup = inodes;
+    groups = Math.max(1, totalBlocks / groupBlocks);
+    groupLock = new Object[groups];
+    for (int g = 0; g < groups; g++)
+      groupLock[g] = new Object();
+    groupFree = new int[groups];
+    groupDirty = new boolean[groups];
+  }
+
+  // Returns the block holding inode iNumber
+  public int inodeBlock(int iNumber) {
+    return inodeStart(iNumber / inodesPerGroup) + iNumber % inodesPerGroup / 16;
+  }
+
+  // Returns the first inode number of group g
+  public int firstInode(int g) {
+    return g * inodesPerGroup;
+  }
+
+  private int inodeStart(int g) {
+    return g * groupBlocks + ((g == 0) ? 1 : 0);
+  }
+
+  private int groupStart(int g) {
+    return g * groupBlocks;
+  }
+
+  private int groupEnd(int g) {
+    return (g == groups - 1) ? totalBlocks : (g + 1) * groupBlocks;
+  }
+
+  private int groupOf(int blockId) {
+    return Math.min(blockId / groupBlocks, groups - 1);
+  }
+
+  // Returns how many blocks group g's inodes take
+  private int sliceBlocks(int g) {
+    int inodes = Math.min(inodesPerGroup, totalInodes - firstInode(g));
+    return (inodes > 0) ? (inodes + 15) / 16 : 0;
+  }
+
+  // Returns the first block of group g's part of the bitmap
+  private int mapStart(int g) {
+    return (g == 0) ? freeMap : inodeStart(g) + sliceBlocks(g);
+  }
+
+  private int mapBlocks(int g) {
+    return (groupSize(g) + bitsPerBlock - 1) / bitsPerBlock;
+  }
+
+  private boolean isMetadata(int blockId) {
+    int g = groupOf(blockId);
+    return blockId == 0 ||
+        (blockId >= inodeStart(g) && blockId < inodeStart(g) + sliceBlocks(g)) ||
+        (blockId >= mapStart(g) && blockId < mapStart(g) + mapBlocks(g));
+  }
 
-    freeList = (numOfInodes / 16) + var;
+  // Returns the group for a new file's inode, given its parent's inode:
+  // the parent's group while at least the disk's share of its blocks is
+  // free, or else the group with inodes that has the most of its blocks
+  // free
+  public int getInodeGroup(int parent) {
+    int inodeGroups = Math.min(groups, (totalInodes + inodesPerGroup - 1) / inodesPerGroup);
+    int home = Math.min(parent / inodesPerGroup, inodeGroups - 1);
+    int best = home;
+    for (int g = 0; g < inodeGroups; g++)
+      if ((long) groupFree[g] * groupSize(best) > (long) groupFree[best] * groupSize(g))
+        best = g;
+    return ((long) groupFree[home] * totalBlocks >= (long) getFreeBlocks() * groupSize(home)) ?
+        home : best;
+  }
+
+  private int groupSize(int g) {
+    return groupEnd(g) - groupStart(g);
+  }
+
+  // Returns where the data of a file with inode iNumber starts out, just
+  // after its group's inodes and bitmap
+  public int getHomeBlock(int iNumber) {
+    int g = Math.min(iNumber / inodesPerGroup, groups - 1);
+    return (g == 0) ? inodeStart(0) + sliceBlocks(0) : mapStart(g) + mapBlocks(g);
+  }
+
+  // Allocates an all-free bitmap, with the bits past the disk end in use
+  private void newMap() {
+    map = new long[(totalBlocks + 63) / 64];
+    if (totalBlocks % 64 != 0)
+      map[map.length - 1] = -1L << (totalBlocks % 64);
+    countFree();
+    nextFree = 0;
+  }
+
+  // Counts each group's free blocks from the bitmap
+  private void countFree() {
+    for (int g = 0; g < groups; g++) {
+      groupFree[g] = 0;
+      for (int i = groupStart(g) / 64; i < (groupEnd(g) + 63) / 64; i++)
+        groupFree[g] += Long.bitCount(~map[i]);
+    }
+  }
 
-    // create new free blocks and write it into the disk
-    for (int i = totalBlocks - 2; i >= freeList; i--) {
-      block = new byte[Disk.blockSize];
-      // erase
-      for (int j = 0; j < Disk.blockSize; j++) {
-        block[j] = (byte) 0;
+  // Reads each group's bitmap blocks into memory
+  private void loadMap() {
+    newMap();
+    long tail = map[map.length - 1];
+    byte[] bits = new byte[Disk.blockSize];
+    for (int g = 0; g < groups; g++) {
+      int first = groupStart(g) / 64, end = (groupEnd(g) + 63) / 64;
+      for (int i = 0; i < mapBlocks(g); i++) {
+        SysLib.cread(mapStart(g) + i, bits);
+        for (int j = 0; j < Disk.blockSize; j++) {
+          int word = first + (i * Disk.blockSize + j) / 8;
+          if (word < end)
+            map[word] |= (long) (bits[j] & 0xff) << ((j % 8) * 8);
+        }
       }
-      SysLib.int2bytes(i + 1, block, 0);
-      SysLib.rawwrite(i, block);
     }
-    // write Null pointer in last block
-    SysLib.int2bytes(-1, block, 0);
-    SysLib.rawwrite(totalBlocks - 1, block);
+    map[map.length - 1] |= tail;
+    countFree();
+  }
 
-    // update super block
-    sync();
+  // Rebuilds the bitmap from an old on-disk free list and moves it into
+  // a free run of blocks. Returns false if the list is damaged or no run
+  // is left for the bitmap.
+  private boolean convertFreeList() {
+    int listHead = freeMap;
+    newMap();
+    for (int i = 0; i < map.length; i++)
+      map[i] = -1L;
+
+    // walk the list, clearing each next pointer to keep free blocks empty
+    byte[] block = new byte[Disk.blockSize];
+    for (int next = listHead; next > 0 && next < totalBlocks; ) {
+      if (next <= (totalInodes + 15) / 16 || !isUsed(next))
+        return false; // metadata or a cycle
+      SysLib.cread(next, block);
+      map[next / 64] &= ~(1L << (next % 64));
+      int blockId = next;
+      next = SysLib.bytes2int(block, 0);
+      SysLib.int2bytes(0, block, 0);
+      SysLib.cwrite(blockId, block);
+    }
+    cleared.set(totalBlocks);
+    countFree();
+
+    freeMap = findFreeRun(0, totalBlocks, mapBlocks(0));
+    if (freeMap < 0)
+      return false;
+    for (int i = 0; i < mapBlocks(0); i++)
+      setUsed(freeMap + i);
+    return true;
+  }
+
+  private boolean isUsed(int blockId) {
+    return (map[blockId / 64] & (1L << (blockId % 64))) != 0;
+  }
+
+  private void setUsed(int blockId) {
+    map[blockId / 64] |= 1L << (blockId % 64);
+    groupDirty[groupOf(blockId)] = true;
+    groupFree[groupOf(blockId)]--;
+  }
+
+  private void setFree(int blockId) {
+    map[blockId / 64] &= ~(1L << (blockId % 64));
+    groupDirty[groupOf(blockId)] = true;
+    groupFree[groupOf(blockId)]++;
   }
 
-  // Gets a new free block from the free list
+  // Returns the first free block from from up to to, or -1, skipping
+  // full words 64 blocks at a time
+  private int findFree(int from, int to) {
+    for (int word = from / 64; word * 64 < to; word++) {
+      long free = ~map[word];
+      if (word == from / 64)
+        free &= -1L << (from % 64); // ignore blocks before from
+      if (free != 0) {
+        int blockId = word * 64 + Long.numberOfTrailingZeros(free);
+        return (blockId < to) ? blockId : -1;
+      }
+    }
+    return -1;
+  }
+
+  // Returns the first block of a run of length free blocks from from up
+  // to to, or -1
+  private int findFreeRun(int from, int to, int length) {
+    for (int start = findFree(from, to); start >= 0; ) {
+      int end = start;
+      while (end < to && end - start < length && !isUsed(end))
+        end++;
+      if (end - start == length)
+        return start;
+      start = (end < to) ? findFree(end, to) : -1;
+    }
+    return -1;
+  }
+
+  // Returns the number of blocks still free
+  public int getFreeBlocks() {
+    int free = 0;
+    for (int g = 0; g < groups; g++)
+      free += groupFree[g];
+    return free;
+  }
+
+  // Gets a new free block, already cleared, from the bitmap
   public int getFreeBlock() {
-    // read the first free block
-    if (freeList > 0 && freeList < totalBlocks) {
-      byte[] block = new byte[Disk.blockSize];
-      SysLib.rawread(freeList, block);
+    return getFreeBlock(-1);
+  }
 
-      int tempVal = freeList;
+  // Gets a new free block as close after goal as possible, normally the
+  // block after the file's last one, or anywhere if goal is -1
+  public int getFreeBlock(int goal) {
+    int[] length = new int[1];
+    return getFreeExtent(goal, 1, length);
+  }
 
-      // move head index to the next space
-      freeList = SysLib.bytes2int(block, 0);
+  // Gets count free blocks for one write in a single call, in as few
+  // runs as getFreeExtent finds from goal on, and stores them in blocks.
+  // Returns how many it got, fewer only when the disk is full.
+  public int getFreeBlocks(int goal, int count, short[] blocks) {
+    int[] length = new int[1];
+    int n = 0;
+    while (n < count) {
+      int start = getFreeExtent(goal, count - n, length);
+      if (start < 0)
+        break;
+      for (int i = 0; i < length[0]; i++)
+        blocks[n++] = (short) (start + i);
+      goal = start + length[0];
+    }
+    return n;
+  }
 
-      // return block location
-      return tempVal;
+  // Gets a run of up to count contiguous free blocks and returns its
+  // first block, or -1 if the disk is full, storing the run's length in
+  // length[0]. The run comes from goal's group if that has a free block,
+  // or else from the groups after it.
+  public int getFreeExtent(int goal, int count, int[] length) {
+    length[0] = 0;
+    if (count <= 0)
+      return -1;
+    if (goal < 0 || goal >= totalBlocks) {
+      int next = nextFree;
+      goal = (next < totalBlocks) ? next : 0;
+    }
+    int home = groupOf(goal);
+    for (int i = 0; i < groups; i++) {
+      int g = (home + i) % groups;
+      synchronized (groupLock[g]) {
+        if (groupFree[g] > 0)
+          return allocate(g, (i == 0) ? goal : groupStart(g), count, length);
+      }
     }
-    return -1; // invalid freeList state
+    return -1; // disk full
   }
 
-  // Returns this old block to the free list. The list can be a stack.
-  public boolean returnBlock(int oldBlockNumber) {
-    // make a temporary byte array
-    byte[] buffer = new byte[Disk.blockSize];
+  // Takes a run of up to count free blocks in group g, which has one.
+  // The run starts at goal when that block is free, so a file keeps
+  // growing in place. Otherwise it is the first run of count free blocks
+  // from goal's track on, so that no track is crossed when there is room
+  // on that track, or failing that the free blocks after the first free
+  // one.
+  private int allocate(int g, int goal, int count, int[] length) {
+    int lo = groupStart(g), hi = groupEnd(g);
+    int start = goal;
+    if (isUsed(goal)) {
+      int track = Math.max(lo, goal - goal % Disk.trackSize);
+      if ((start = findFreeRun(track, hi, count)) < 0 &&
+          (start = findFreeRun(lo, hi, count)) < 0 &&
+          (start = findFree(track, hi)) < 0)
+        start = findFree(lo, hi);
+    }
 
-    // convert free list into bytes and put it in buffer
-    SysLib.short2bytes((short) freeList, buffer, 0);
+    int end = start;
+    while (end < hi && end - start < count && !isUsed(end))
+      setUsed(end++);
+    length[0] = end - start;
+    nextFree = end;
 
-    // write to the disk
-    SysLib.rawwrite(oldBlockNumber, buffer);
+    // clear the blocks no file has used since format, and move the
+    // mark up when the run reaches it
+    byte[] empty = new byte[Disk.blockSize];
+    int mark = cleared.get();
+    for (int i = Math.max(start, mark); i < end; i++)
+      SysLib.cwrite(i, empty);
+    if (start <= mark && end > mark)
+      cleared.compareAndSet(mark, end);
+    return start;
+  }
 
-    // set oldBlockNumber to freelist
-    freeList = oldBlockNumber;
-    return true;
+  // Returns this old block, already cleared by the caller, to the bitmap
+  public boolean returnBlock(int oldBlockNumber) {
+    if (oldBlockNumber <= 0 || oldBlockNumber >= totalBlocks)
+      return false;
+    synchronized (groupLock[groupOf(oldBlockNumber)]) {
+      if (!isUsed(oldBlockNumber) || isMetadata(oldBlockNumber))
+        return false;
+
+      // plain data again if it was an index block
+      SysLib.ctag(oldBlockNumber, Cache.DATA);
+      setFree(oldBlockNumber);
+      return true;
+    }
   }
-}
\ No newline at end of file
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.*; // SysLib_org.java
 
 public class SysLib {
@@ -16,6 +17,11 @@ public class SysLib {
 				 Kernel.BOOT, 0, null );
     }
 
+    public static int boot( String options[] ) {
+	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.BOOT, 0, options );
+    }
+
     public static int exit( ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.EXIT, 0, null );
@@ -26,9 +32,9 @@ public class SysLib {
 				 Kernel.SLEEP, milliseconds, null );
     }
 
-    public static int disk( ) {
+    public static int disk( int req ) {
 	return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-				 0, 0, null );
+				 0, req, null );
     }
 
     public static int cin( StringBuffer s ) {
@@ -56,6 +62,52 @@ public class SysLib {
 				 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    public static int rawreadv( int blkNumbers[], byte b[][] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWREADV, 0, 
+				 new Object[] { blkNumbers, b } );
+    }
+
+    public static int rawwritev( int blkNumbers[], byte b[][] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.RAWWRITEV, 0, 
+				 new Object[] { blkNumbers, b } );
+    }
+
+    // Queues a block read and returns a handle at once, or ERROR if the
+    // block is not on the disk. Every handle must be completed by the
+    // thread that got it, with asyncwait or an OK asyncpoll.
+    public static int asyncread( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.ASYNCREAD, blkNumber, b );
+    }
+
+    public static int asyncwrite( int blkNumber, byte[] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.ASYNCWRITE, blkNumber, b );
+    }
+
+    public static int asyncwait( int req ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.ASYNCWAIT, req, null );
+    }
+
+    // Returns Kernel.OK once req is done, Kernel.BUSY while in flight
+    public static int asyncpoll( int req ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.ASYNCPOLL, req, null );
+    }
+
+    public static int diskstats( StringBuffer s ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKSTATS, 0, s );
+    }
+
+    public static int disktime( ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.DISKTIME, 0, null );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.SYNC, 0, null );
@@ -76,11 +128,43 @@ public class SysLib {
 				 Kernel.CFLUSH, 0, null );
     }
 
+    // Pins a cached block and sets view[0] to a read-only view of it
+    // Every cpin returning OK must be matched by a crelease. COPIED means
+    // no page was free to pin, and view[0] is a private copy instead.
+    public static int cpin( int blkNumber, ByteBuffer view[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CPIN, blkNumber, view );
+    }
+
+    public static int crelease( int blkNumber ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CRELEASE, blkNumber, null );
+    }
+
+    // Tags a block with its Cache class, e.g. Cache.INODE, so the cache
+    // can keep metadata apart from data
+    public static int ctag( int blkNumber, int blockClass ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CTAG, blkNumber, 
+				 Integer.valueOf( blockClass ) );
+    }
+
+    public static int cachestats( StringBuffer s ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CACHESTATS, 0, s );
+    }
+
     public static int csync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
 				 Kernel.CSYNC, 0, null );
     }
 
+    // writes back only the cached copies of blocks, without a disk sync
+    public static int csync( int blocks[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+				 Kernel.CSYNC, 0, blocks );
+    }
+
     public static String[] stringToArgs( String s ) {
 	StringTokenizer token = new StringTokenizer( s," " );
 	String[] progArgs = new String[ token.countTokens( ) ];
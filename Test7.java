@@ -0,0 +1,146 @@
+// Tests of the block I/O paths: vectored raw I/O and cache write-back
+// with more outstanding disk requests than the disk queue holds.
+// Formats the disk first, then uses free blocks near its end.
+class Test7 extends Thread {
+  final static int BLOCKS = 3 * Disk.queueSize; // more runs than queue slots
+  final static int FIRST = 700; // first block used, every other one after
+  final boolean child; // started by test3, leaves async reads behind
+
+  public Test7( String args[] ) {
+    child = true;
+  }
+
+  public Test7( ) {
+    child = false;
+  }
+
+  public void run( ) {
+    if ( child ) {
+      // queue reads for half the disk queue and exit without waiting
+      for ( int i = 0; i < Disk.queueSize / 2; i++ )
+        SysLib.asyncread( block( i ), new byte[512] );
+      SysLib.exit( );
+      return;
+    }
+    SysLib.format( 48 );
+    if ( test1( ) ) // rawwritev/rawreadv of BLOCKS scattered blocks
+      SysLib.cout("Correct behavior of scattered vectored I/O........1\n");
+    if ( test2( ) ) // csync of BLOCKS scattered dirty blocks
+      SysLib.cout("Correct behavior of syncing scattered blocks......1\n");
+    if ( test3( ) ) // threads exit with async reads outstanding
+      SysLib.cout("Correct behavior of exiting with async reads......1\n");
+    if ( test4( ) ) // a full queue of async reads after readahead
+      SysLib.cout("Correct behavior of I/O after a stream stops......1\n");
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // Returns the i-th of the scattered blocks
+  private static int block( int i ) {
+    return FIRST + 2 * i;
+  }
+
+  // Fills a block with a pattern of its number and a generation
+  private static byte[] pattern( int blockId, int generation ) {
+    byte[] b = new byte[512];
+    for ( int i = 0; i < 512; i++ )
+      b[i] = (byte)( blockId + generation + i );
+    return b;
+  }
+
+  private static boolean same( byte[] a, byte[] b ) {
+    for ( int i = 0; i < 512; i++ )
+      if ( a[i] != b[i] )
+        return false;
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: rawwritev/rawreadv of " + BLOCKS + " runs.." );
+    int[] blocks = new int[BLOCKS];
+    byte[][] data = new byte[BLOCKS][];
+    byte[][] read = new byte[BLOCKS][];
+    for ( int i = 0; i < BLOCKS; i++ ) {
+      blocks[i] = block( i );
+      data[i] = pattern( blocks[i], 1 );
+      read[i] = new byte[512];
+    }
+    if ( SysLib.rawwritev( blocks, data ) != Kernel.OK ||
+         SysLib.rawreadv( blocks, read ) != Kernel.OK ) {
+      SysLib.cout( "error returned (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < BLOCKS; i++ )
+      if ( !same( data[i], read[i] ) ) {
+        SysLib.cout( "block " + blocks[i] + " differs (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: cwrite " + BLOCKS + " blocks and csync...." );
+    for ( int i = 0; i < BLOCKS; i++ )
+      SysLib.cwrite( block( i ), pattern( block( i ), 2 ) );
+    SysLib.csync( );
+    byte[] b = new byte[512];
+    for ( int i = 0; i < BLOCKS; i++ ) {
+      SysLib.rawread( block( i ), b );
+      if ( !same( b, pattern( block( i ), 2 ) ) ) {
+        SysLib.cout( "block " + block( i ) + " differs (wrong)\n" );
+        return false;
+      }
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: 3 threads exit with async reads.." );
+    String[] cmd = { "Test7", "child" };
+    for ( int i = 0; i < 3; i++ ) {
+      SysLib.exec( cmd );
+      SysLib.join( );
+    }
+    // hangs here if their requests still hold disk slots
+    int[] blocks = new int[BLOCKS];
+    byte[][] read = new byte[BLOCKS][];
+    for ( int i = 0; i < BLOCKS; i++ ) {
+      blocks[i] = block( i );
+      read[i] = new byte[512];
+    }
+    if ( SysLib.rawreadv( blocks, read ) != Kernel.OK ) {
+      SysLib.cout( "error returned (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: queue full of async reads......" );
+    // a sequential stream, then a jump that queues prefetches nobody
+    // reads; they finish and stay unclaimed
+    byte[] b = new byte[512];
+    for ( int i = 0; i < 20; i++ )
+      SysLib.rawread( 600 + i, b );
+    SysLib.rawread( 650, b );
+    // hangs here if those prefetches still hold disk slots
+    int[] reqs = new int[Disk.queueSize];
+    for ( int i = 0; i < Disk.queueSize; i++ )
+      reqs[i] = SysLib.asyncread( block( i ), new byte[512] );
+    for ( int i = 0; i < Disk.queueSize; i++ )
+      if ( SysLib.asyncwait( reqs[i] ) != Kernel.OK ) {
+        SysLib.cout( "asyncwait( " + reqs[i] + " ) failed (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,98 @@
+// Tests of files open on more than one descriptor, with or without
+// delalloc=on: writes through one are seen by the other, and deleting
+// a file before closing it drops data that has no blocks yet.
+class Test8 extends Thread {
+  final static int SIZE = 3 * 512 + 100; // past the first few blocks
+
+  public void run( ) {
+    SysLib.format( 48 );
+    if ( test1( ) ) // read through a second descriptor
+      SysLib.cout("Correct behavior of two descriptors on a file....1\n");
+    if ( test2( ) ) // delete a file before closing it
+      SysLib.cout("Correct behavior of deleting an open file........1\n");
+
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // Fills length bytes with a pattern starting at seed
+  private static byte[] pattern( int seed, int length ) {
+    byte[] b = new byte[length];
+    for ( int i = 0; i < length; i++ )
+      b[i] = (byte)( seed + i );
+    return b;
+  }
+
+  private static boolean same( byte[] a, byte[] b, int length ) {
+    for ( int i = 0; i < length; i++ )
+      if ( a[i] != b[i] )
+        return false;
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: write on one fd, read on another.." );
+    int w = SysLib.open( "test8a", "w+" );
+    int r = SysLib.open( "test8a", "r" );
+    byte[] data = pattern( 1, SIZE );
+    if ( SysLib.write( w, data ) != SIZE ) {
+      SysLib.cout( "write failed (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.fsize( r ) != SIZE ) {
+      SysLib.cout( "size " + SysLib.fsize( r ) + " != " + SIZE +
+                   " on the other fd (wrong)\n" );
+      return false;
+    }
+    byte[] read = new byte[SIZE];
+    if ( SysLib.read( r, read ) != SIZE || !same( data, read, SIZE ) ) {
+      SysLib.cout( "read back differs on the other fd (wrong)\n" );
+      return false;
+    }
+    SysLib.close( w );
+    SysLib.close( r );
+
+    r = SysLib.open( "test8a", "r" );
+    read = new byte[SIZE];
+    int size = SysLib.fsize( r );
+    int n = SysLib.read( r, read );
+    SysLib.close( r );
+    if ( size != SIZE || n != SIZE || !same( data, read, SIZE ) ) {
+      SysLib.cout( "reopened file differs (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: delete an open file and close it.." );
+    int fd = SysLib.open( "test8b", "w+" );
+    SysLib.write( fd, pattern( 2, SIZE ) );
+    if ( SysLib.delete( "test8b" ) != 0 ) {
+      SysLib.cout( "delete failed (wrong)\n" );
+      return false;
+    }
+    // whatever is left must be readable to its end
+    int size = SysLib.fsize( fd );
+    SysLib.seek( fd, 0, 0 );
+    byte[] read = new byte[SIZE];
+    int n = SysLib.read( fd, read );
+    if ( n != size ) {
+      SysLib.cout( "size " + size + " but read " + n + " (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.close( fd ) != 0 ) {
+      SysLib.cout( "close failed (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.open( "test8b", "r" ) != -1 ) {
+      SysLib.cout( "deleted file opened (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,119 @@
+// Tests mounting a disk from before block groups, in two boots.
+// "l Test9" on such a disk, like the DISK shipped with ThreadOS, uses it
+// without formatting it and leaves a file and a "/" with more entries
+// than the disk has inodes, as older code wrote it. After "q" and a new
+// boot, "l Test9 remount" checks the file is still found by its name.
+class Test9 extends Thread {
+  final static int ENTRIES = 100; // entries in the old "/"
+  final static int MAXCHARS = 30;
+  final static int GHOST = 80; // an entry past the disk's inodes
+  final static int SIZE = 600;
+  final boolean remount;
+
+  public Test9( String args[] ) {
+    remount = args.length > 0 && args[0].equals( "remount" );
+  }
+
+  public Test9( ) {
+    remount = false;
+  }
+
+  public void run( ) {
+    if ( !remount ) {
+      if ( test1( ) ) // use a disk from before block groups
+        SysLib.cout("Correct behavior of mounting an old disk.........1\n");
+      if ( test2( ) ) // leave a "/" with ENTRIES entries
+        SysLib.cout("Correct behavior of writing an old directory.....1\n");
+    } else {
+      if ( test3( ) ) // mount the old "/"
+        SysLib.cout("Correct behavior of reading an old directory.....1\n");
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private static byte[] pattern( int length ) {
+    byte[] b = new byte[length];
+    for ( int i = 0; i < length; i++ )
+      b[i] = (byte)( 9 + i );
+    return b;
+  }
+
+  private static boolean same( byte[] a, byte[] b ) {
+    for ( int i = 0; i < a.length; i++ )
+      if ( a[i] != b[i] )
+        return false;
+    return true;
+  }
+
+  // Returns true if fileName holds pattern( SIZE )
+  private static boolean check( String fileName ) {
+    int fd = SysLib.open( fileName, "r" );
+    if ( fd < 0 )
+      return false;
+    byte[] read = new byte[SIZE];
+    int n = SysLib.read( fd, read );
+    SysLib.close( fd );
+    return n == SIZE && same( pattern( SIZE ), read );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: create a file on the old disk...." );
+    // the first file created goes in inode 1
+    int fd = SysLib.open( "legacy", "w+" );
+    if ( fd < 0 || SysLib.write( fd, pattern( SIZE ) ) != SIZE ) {
+      SysLib.cout( "open or write failed (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    if ( !check( "legacy" ) ) {
+      SysLib.cout( "read back differs (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: write a " + ENTRIES + "-entry \"/\"............" );
+    byte[] data = new byte[ENTRIES * ( 4 + MAXCHARS * 2 )];
+    String[] names = new String[ENTRIES];
+    names[0] = "/";
+    names[1] = "legacy";
+    names[GHOST] = "ghost";
+    for ( int i = 0; i < ENTRIES; i++ ) {
+      if ( names[i] == null )
+        continue;
+      SysLib.int2bytes( names[i].length( ), data, i * 4 );
+      byte[] name = names[i].getBytes( );
+      System.arraycopy( name, 0, data, ENTRIES * 4 + i * MAXCHARS * 2,
+                        name.length );
+    }
+    int fd = SysLib.open( "/", "w+" );
+    if ( fd < 0 || SysLib.write( fd, data ) != data.length ) {
+      SysLib.cout( "open or write failed (wrong)\n" );
+      return false;
+    }
+    SysLib.close( fd );
+    SysLib.sync( );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: find files in the old \"/\"........" );
+    if ( !check( "legacy" ) ) {
+      SysLib.cout( "legacy not found or differs (wrong)\n" );
+      return false;
+    }
+    if ( SysLib.open( "ghost", "r" ) >= 0 ) {
+      SysLib.cout( "ghost past the last inode opened (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
@@ -0,0 +1,141 @@
+// 2Q replacement (Johnson and Shasha)
+// A block seen once goes into the FIFO a1in. When it falls out of a1in
+// only its block number is remembered in the ghost FIFO a1out. A block
+// referenced again while in a1out is hot and goes into the LRU list am.
+// A sequential scan only ever passes through a1in, so the hot blocks in
+// am, such as inode and index blocks, survive it.
+// All state is in int arrays sized at construction: a1in and am are
+// linked through the pages themselves, and a1out is a ring of block
+// numbers, so hits and replacements allocate nothing.
+public class TwoQPolicy implements CachePolicy {
+    private static final int NONE = -1;
+    private int kin;                        // target size of a1in
+    private int kout;                       // max size of a1out
+    private int blocks[];                   // block cached in each page
+    private boolean hot[];                  // page was last in am
+
+    // a1in (oldest first) and am (least recent first) are circular
+    // doubly linked lists of pages, headed by two extra entries
+    private int a1inHead;
+    private int amHead;
+    private int next[];
+    private int prev[];
+    private int queue[];                    // head of the page's list, or NONE
+    private int a1inSize;
+    private int amSize;
+
+    // a1out holds block numbers, oldest at outFirst; outSlot maps a block
+    // to its slot. A block taken out by a hit leaves its slot NONE.
+    private int a1out[];
+    private int outFirst;
+    private int outCount;                   // slots in use, NONE included
+    private IntHashMap outSlot;
+
+    public TwoQPolicy( int cacheBlocks ) {
+	kin = Math.max( 1, cacheBlocks / 4 );
+	kout = Math.max( 1, cacheBlocks / 2 );
+	blocks = new int[ cacheBlocks ];
+	hot = new boolean[ cacheBlocks ];
+	a1inHead = cacheBlocks;
+	amHead = cacheBlocks + 1;
+	next = new int[ cacheBlocks + 2 ];
+	prev = new int[ cacheBlocks + 2 ];
+	queue = new int[ cacheBlocks ];
+	java.util.Arrays.fill( queue, NONE );
+	next[a1inHead] = prev[a1inHead] = a1inHead;
+	next[amHead] = prev[amHead] = amHead;
+	a1inSize = amSize = 0;
+	a1out = new int[ kout ];
+	outFirst = outCount = 0;
+	outSlot = new IntHashMap( kout );
+    }
+
+    public void hit( int page ) {
+	if ( queue[page] == amHead ) {      // move to the most recent end
+	    unlink( page );
+	    append( amHead, page );
+	}
+	// a hit in a1in leaves it in place: correlated references
+	// right after the first one do not make a block hot
+    }
+
+    // A page removed and inserted again with the same block, as when it
+    // was pinned for a while, goes back to the queue it was in
+    public void insert( int page, int blockId ) {
+	hot[page] = ( hot[page] && blocks[page] == blockId ) ||
+	    forget( blockId );
+	blocks[page] = blockId;
+	if ( queue[page] != NONE )
+	    unlink( page );
+	append( hot[page] ? amHead : a1inHead, page );
+    }
+
+    public void remove( int page ) {
+	if ( queue[page] != NONE )
+	    unlink( page );
+    }
+
+    public int victim( ) {
+	int page;
+	if ( a1inSize == 0 && amSize == 0 )
+	    return -1;
+	if ( a1inSize > kin || amSize == 0 ) {
+	    page = next[a1inHead];
+	    unlink( page );
+	    remember( blocks[page] );       // remember it was seen once
+	} else {
+	    page = next[amHead];
+	    unlink( page );
+	}
+	hot[page] = false;
+	return page;
+    }
+
+    // Adds page at the tail of the list headed by head
+    private void append( int head, int page ) {
+	int last = prev[head];
+	next[last] = page;
+	prev[page] = last;
+	next[page] = head;
+	prev[head] = page;
+	queue[page] = head;
+	if ( head == a1inHead )
+	    a1inSize++;
+	else
+	    amSize++;
+    }
+
+    private void unlink( int page ) {
+	next[prev[page]] = next[page];
+	prev[next[page]] = prev[page];
+	if ( queue[page] == a1inHead )
+	    a1inSize--;
+	else
+	    amSize--;
+	queue[page] = NONE;
+    }
+
+    // Adds blockId to a1out, dropping the oldest slot once it is full
+    private void remember( int blockId ) {
+	forget( blockId );
+	if ( outCount == kout ) {
+	    if ( a1out[outFirst] != NONE )
+		outSlot.remove( a1out[outFirst] );
+	    outFirst = ( outFirst + 1 ) % kout;
+	    outCount--;
+	}
+	int slot = ( outFirst + outCount++ ) % kout;
+	a1out[slot] = blockId;
+	outSlot.put( blockId, slot );
+    }
+
+    // Takes blockId out of a1out; returns true if it was there
+    private boolean forget( int blockId ) {
+	int slot = outSlot.get( blockId );
+	if ( slot == NONE )
+	    return false;
+	a1out[slot] = NONE;
+	outSlot.remove( blockId );
+	return true;
+    }
+}